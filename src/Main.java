@@ -1,8 +1,10 @@
 
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import sam.server.Server;
 import sam.server.Utils;
+import sam.server.root.PackCompiler;
 
 public class Main {
     public static void main(String[] args) throws Exception {
@@ -13,6 +15,15 @@ public class Main {
             printUsage();
             System.exit(0);
         }
+        if(args[0].equals("-compile")) {
+            if(args.length < 2) {
+                printUsage();
+                System.exit(1);
+            }
+            Path source = Paths.get(args[1]);
+            PackCompiler.compile(source, args.length > 2 ? Paths.get(args[2]) : source.toAbsolutePath().resolveSibling(source.getFileName() + ".pack"), Server.packRewriter());
+            System.exit(0);
+        }
         if(args[0].equals("-v")) {
             System.out.println(1.453);
             System.exit(0);
@@ -24,7 +35,8 @@ public class Main {
     }
 
     private static void printUsage() {
-        String usage = "" + "usage: java Server [zipfile/folder]"
+        String usage = "" + "usage: java Server [zipfile/folder/packfile]\n"
+                + "       java Server -compile zipfile/folder [packfile]"
                 /**
                  * + " [options] \n\n" 
                  * +"options:\n" 
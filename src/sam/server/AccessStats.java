@@ -0,0 +1,115 @@
+package sam.server;
+
+import static sam.server.ServerUtils.DOWNLOADS_DIR;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * access counts of resources of a root, persisted (as "count\tkey" lines) across runs, used to warm up hot resources.
+ * <pre>
+ * keys:
+ *   /path/in/root      resource of root
+ *   hash:&lt;hashcode&gt;     download persisted in root
+ *   download:&lt;name&gt;    file in DOWNLOADS_DIR
+ * </pre>
+ * counts are halved on every load, so resources no longer used age out.
+ * saved on close of root, and periodically (see {@link Warmer}).
+ */
+final class AccessStats {
+    static final String HASH = "hash:";
+    static final String DOWNLOAD = "download:";
+
+    private static final Path DIR = DOWNLOADS_DIR.resolveSibling("server_stats");
+    private static final int MAX_KEYS = 4096;
+
+    private final Path file;
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    AccessStats(Path root) {
+        String key = root.toAbsolutePath().normalize().toString();
+        this.file = DIR.resolve(root.getFileName()+"-"+Integer.toHexString(key.hashCode())+".tsv");
+        load();
+    }
+    void hit(String key) {
+        AtomicInteger n = counts.get(key);
+        if(n == null) {
+            // bounded, new keys beyond twice the persisted size are not tracked till next run
+            if(counts.size() >= MAX_KEYS * 2)
+                return;
+            n = counts.computeIfAbsent(key, k -> new AtomicInteger());
+        }
+        n.incrementAndGet();
+        modified = true;
+    }
+    /**
+     * @return n most accessed keys, most accessed first
+     */
+    List<String> top(int n) {
+        return sorted().limit(n).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+    private Stream<Map.Entry<String, AtomicInteger>> sorted() {
+        return counts.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, AtomicInteger> e) -> e.getValue().get()).reversed());
+    }
+
+    private void load() {
+        if(Files.notExists(file))
+            return;
+
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if(tab < 0)
+                    continue;
+                int n = Integer.parseInt(line.substring(0, tab)) / 2;
+                if(n > 0)
+                    counts.put(line.substring(tab + 1), new AtomicInteger(n));
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println(Utils.red("failed to read: ")+file+"  "+e);
+        }
+    }
+    synchronized void save() {
+        if(!modified)
+            return;
+
+        // hits while saving are saved next time 
+        modified = false;
+        try {
+            Files.createDirectories(DIR);
+            Path temp = Files.createTempFile(DIR, file.getFileName().toString(), ".tmp");
+            try {
+                try(BufferedWriter w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, AtomicInteger> e : sorted().limit(MAX_KEYS).collect(Collectors.toList())) {
+                        w.write(String.valueOf(e.getValue().get()));
+                        w.write('\t');
+                        w.write(e.getKey());
+                        w.newLine();
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            modified = true;
+            System.out.println(Utils.red("failed to save: ")+file+"  "+e);
+        }
+    }
+}
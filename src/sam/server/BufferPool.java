@@ -0,0 +1,54 @@
+package sam.server;
+
+import java.util.Optional;
+
+/**
+ * thread-local copy buffers in three size classes (base, base*8, base*32), base is "sam.buffer.size".
+ * every {@link #acquire(long)} must be paired with a {@link #release(byte[])}
+ */
+public final class BufferPool {
+    private static final int BASE_SIZE = Optional.ofNullable(System.getProperty("sam.buffer.size")).map(Integer::parseInt).orElse(8*1024);
+    private static final int[] SIZES = {BASE_SIZE, BASE_SIZE*8, BASE_SIZE*32};
+    private static final ThreadLocal<byte[][]> LOCAL = ThreadLocal.withInitial(() -> new byte[SIZES.length][]);
+
+    private BufferPool() {}
+
+    /**
+     * @param sizeHint expected number of bytes to be copied, &lt;= 0 if unknown
+     */
+    public static byte[] acquire(long sizeHint) {
+        int c = sizeClass(sizeHint);
+        byte[][] slots = LOCAL.get();
+        byte[] bytes = slots[c];
+
+        if(bytes == null)
+            return new byte[SIZES[c]];
+
+        slots[c] = null;
+        return bytes;
+    }
+    public static void release(byte[] bytes) {
+        if(bytes == null)
+            return;
+
+        for (int i = 0; i < SIZES.length; i++) {
+            if(SIZES[i] == bytes.length) {
+                LOCAL.get()[i] = bytes;
+                return;
+            }
+        }
+    }
+    public static int largest() {
+        return SIZES[SIZES.length - 1];
+    }
+    private static int sizeClass(long sizeHint) {
+        if(sizeHint <= 0)
+            return 0;
+
+        for (int i = 0; i < SIZES.length; i++) {
+            if(sizeHint <= SIZES[i])
+                return i;
+        }
+        return SIZES.length - 1;
+    }
+}
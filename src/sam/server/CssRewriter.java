@@ -0,0 +1,249 @@
+package sam.server;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+/**
+ * rewrites url(...) and @import "..." targets of a stylesheet to "/download?&lt;url&gt;" (if accepted by tester),
+ * while it is being written, so it can be applied to a stream of unknown length.
+ * <br>
+ * for a downloaded stylesheet (base != null), relative targets are resolved against its upstream url,
+ * (they would otherwise resolve against "/download?...")
+ */
+final class CssRewriter {
+    private final Predicate<String> tester;
+
+    CssRewriter(Predicate<String> tester) {
+        this.tester = tester;
+    }
+    static boolean isCss(String mime) {
+        return mime != null && mime.startsWith("text/css");
+    }
+    /**
+     * @param base upstream url of stylesheet, null if stylesheet is served from root
+     */
+    OutputStream wrap(OutputStream out, URL base) {
+        return new RewritingStream(out, base);
+    }
+
+    String map(String target, URL base) {
+        if(target.isEmpty() || target.startsWith("data:") || target.startsWith("#") || target.startsWith("/download?"))
+            return target;
+
+        String url = target;
+        if(base == null && target.startsWith("//"))
+            url = "http:"+target;
+        else if(base != null) {
+            try {
+                url = new URL(base, target).toString();
+            } catch (MalformedURLException e) {
+                return target;
+            }
+        }
+        if(!url.startsWith("http://") && !url.startsWith("https://"))
+            return target;
+
+        return tester.test(url) ? "/download?"+url : url;
+    }
+
+    private static final int TEXT = 0, COMMENT = 1, STRING = 2, URL_ = 3, IMPORT = 4;
+    private static final int MAX_TOKEN = 4096;
+
+    private final class RewritingStream extends FilterOutputStream {
+        private final URL base;
+        private final StringBuilder held = new StringBuilder();
+        private final StringBuilder token = new StringBuilder();
+        /** url( or @import, as it was written */
+        private String keyword;
+        private int state = TEXT;
+        private char quote;
+        private boolean escape;
+        private char prev;
+
+        RewritingStream(OutputStream out, URL base) {
+            // bytes are pushed one at a time, downstream (shaper, recorder) gets them in runs
+            super(new BufferedOutputStream(out, 8192));
+            this.base = base;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++)
+                write(b[i]);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            char c = (char)(b & 0xFF);
+
+            switch (state) {
+                case COMMENT:
+                    out.write(c);
+                    if(prev == '*' && c == '/')
+                        state = TEXT;
+                    break;
+                case STRING:
+                    out.write(c);
+                    if(escape)
+                        escape = false;
+                    else if(c == '\\')
+                        escape = true;
+                    else if(c == quote)
+                        state = TEXT;
+                    break;
+                case URL_:
+                    url(c);
+                    break;
+                case IMPORT:
+                    importTarget(c);
+                    break;
+                default:
+                    c = text(c);
+            }
+            prev = c;
+        }
+        /**
+         * @return char to be taken as previous one
+         */
+        private char text(char c) throws IOException {
+            if(held.length() != 0) {
+                held.append(c);
+                String s = held.toString().toLowerCase();
+
+                if(s.equals("url(")) {
+                    keyword = held.toString();
+                    held.setLength(0);
+                    token.setLength(0);
+                    quote = 0;
+                    state = URL_;
+                } else if(s.equals("@import")) {
+                    keyword = held.toString();
+                    held.setLength(0);
+                    token.setLength(0);
+                    quote = 0;
+                    state = IMPORT;
+                } else if(s.equals("/*")) {
+                    held.setLength(0);
+                    write("/*");
+                    state = COMMENT;
+                    // '*' of "/*" does not end comment in "/*/"
+                    return 0;
+                } else if(!"url(".startsWith(s) && !"@import".startsWith(s) && !"/*".startsWith(s)) {
+                    held.setLength(held.length() - 1);
+                    write(held);
+                    held.setLength(0);
+                    return text(c);
+                }
+                return c;
+            }
+            if((c == 'u' || c == 'U') && !Character.isLetterOrDigit(prev) && prev != '-' && prev != '_')
+                held.append(c);
+            else if(c == '@' || c == '/')
+                held.append(c);
+            else {
+                out.write(c);
+                if(c == '"' || c == '\'') {
+                    quote = c;
+                    escape = false;
+                    state = STRING;
+                }
+            }
+            return c;
+        }
+        private void url(char c) throws IOException {
+            if(quote != 0) {
+                token.append(c);
+                if(escape)
+                    escape = false;
+                else if(c == '\\')
+                    escape = true;
+                else if(c == quote)
+                    quote = 0;
+            } else if(c == ')') {
+                write(keyword);
+                write(mapInner(token.toString()));
+                out.write(')');
+                state = TEXT;
+            } else {
+                token.append(c);
+                if(c == '"' || c == '\'')
+                    quote = c;
+            }
+            if(state == URL_ && token.length() > MAX_TOKEN) {
+                write(keyword);
+                write(token);
+                state = TEXT;
+            }
+        }
+        private void importTarget(char c) throws IOException {
+            if(quote == 0) {
+                if(Character.isWhitespace(c)) {
+                    token.append(c);
+                    return;
+                }
+                if(c == '"' || c == '\'') {
+                    quote = c;
+                    token.append(c);
+                    return;
+                }
+                // @import url(...), handled as text
+                write(keyword);
+                write(token);
+                state = TEXT;
+                prev = ' ';
+                text(c);
+                return;
+            }
+            token.append(c);
+            if(c == quote && token.charAt(token.length() - 2) != '\\') {
+                int start = token.indexOf(String.valueOf(quote));
+                write(keyword);
+                write(token.substring(0, start + 1));
+                write(map(token.substring(start + 1, token.length() - 1), base));
+                out.write(quote);
+                state = TEXT;
+            } else if(token.length() > MAX_TOKEN) {
+                write(keyword);
+                write(token);
+                state = TEXT;
+            }
+        }
+        /**
+         * keeps whitespace and quotes around target as they were
+         */
+        private String mapInner(String s) {
+            int start = 0, end = s.length();
+            while(start < end && Character.isWhitespace(s.charAt(start))) start++;
+            while(end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+
+            int q = 0;
+            if(end - start >= 2 && (s.charAt(start) == '"' || s.charAt(start) == '\'') && s.charAt(end - 1) == s.charAt(start))
+                q = 1;
+
+            return s.substring(0, start + q) + map(s.substring(start + q, end - q), base) + s.substring(end - q);
+        }
+        private void write(CharSequence s) throws IOException {
+            out.write(s.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                // unterminated token, written as it was
+                if(state == URL_ || state == IMPORT) {
+                    write(keyword);
+                    write(token);
+                }
+                write(held);
+                held.setLength(0);
+                token.setLength(0);
+                state = TEXT;
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package sam.server;
+
+import static sam.server.ServerUtils.pipe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import sam.server.root.FileUnit;
+
+/**
+ * one POST /download-batch, a manifest of urls (one per line, # for comments).
+ * <br>
+ * urls already cached (root, DOWNLOADS_DIR, earlier downloads) are answered at once, rest are fetched
+ * through {@link DownloadQueue}, at most maxInflight of them at a time, so a batch does not fill the queue
+ * and shed requests of pages.
+ * <br>
+ * response is chunked, a line per url as it is settled ("status\turl"), status being one of
+ * cached, fetched, failed, rejected (queue full) or invalid. with zip, response is a zip of resources
+ * (entry per host/path) written as they are settled, status lines are in last entry {@value #STATUS_ENTRY}.
+ * <br>
+ * settled urls are queued and written by the thread of the exchange (outside of lock), so download
+ * threads settling urls are not held by a slow or throttled client.
+ */
+final class DownloadBatch {
+    static final String STATUS_ENTRY = ".batch-status";
+
+    interface Fetcher {
+        /**
+         * @return cached resource of url, null if it is not cached
+         */
+        FileUnit cached(URL url) throws IOException;
+        /**
+         * @param onDone called once download is over (persisted, failed or cancelled)
+         * @return false if download is not accepted
+         */
+        boolean fetch(URL url, Runnable onDone);
+    }
+
+    private final HttpExchange exchange;
+    private final Fetcher fetcher;
+    private final int maxInflight;
+    private final Runnable onClose;
+
+    private final Deque<URL> pending = new ArrayDeque<>();
+    private final Map<String, Integer> counts = new TreeMap<>();
+    private final Deque<Settled> settled = new ArrayDeque<>();
+    private int inflight;
+    private boolean finished, broken, closed;
+
+    // used by thread of exchange only
+    private final StringBuilder statuses = new StringBuilder();
+    private final Set<String> entries = new HashSet<>();
+    private OutputStream out;
+    private ZipOutputStream zip;
+
+    private static final class Settled {
+        final String line;
+        final Object url;
+        final FileUnit unit;
+
+        Settled(String line, Object url, FileUnit unit) {
+            this.line = line;
+            this.url = url;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * @param onClose called once response is closed
+     */
+    DownloadBatch(HttpExchange exchange, Fetcher fetcher, int maxInflight, Runnable onClose) {
+        this.exchange = exchange;
+        this.fetcher = fetcher;
+        this.maxInflight = Math.max(1, maxInflight);
+        this.onClose = onClose;
+    }
+    static List<String> manifest(InputStream is) throws IOException {
+        Set<String> lines = new LinkedHashSet<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(!line.isEmpty() && line.charAt(0) != '#')
+                    lines.add(line);
+            }
+        }
+        return new ArrayList<>(lines);
+    }
+    /**
+     * @param query of request, zip if it has zip, zip=true or zip=1 parameter
+     */
+    static boolean zip(String query) {
+        if(query == null)
+            return false;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            String name = eq < 0 ? param : param.substring(0, eq);
+            String value = eq < 0 ? "" : param.substring(eq + 1);
+            if(name.equals("zip"))
+                return value.isEmpty() || value.equals("true") || value.equals("1");
+        }
+        return false;
+    }
+    /**
+     * sends headers, answers cached urls and queues rest, then writes settled urls till all are.
+     * to be called on thread of exchange, returns once response is complete.
+     */
+    void start(List<String> manifest, boolean zip) throws IOException {
+        try {
+            exchange.getResponseHeaders().add("Content-Type", zip ? "application/zip" : "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            out = exchange.getResponseBody();
+            if(zip)
+                this.zip = new ZipOutputStream(out);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        for (String s : manifest) {
+            URL url = parse(s);
+            if(url == null) {
+                settled("invalid", s, null);
+                continue;
+            }
+            FileUnit unit = null;
+            try {
+                unit = fetcher.cached(url);
+            } catch (IOException e) {
+                Utils.error(url, "batch lookup failed", e);
+            }
+            if(unit != null)
+                settled("cached", url, unit);
+            else
+                synchronized (this) {
+                    pending.add(url);
+                }
+        }
+        next();
+        write();
+    }
+    private static URL parse(String s) {
+        try {
+            URL url = new URL(s);
+            String p = url.getProtocol();
+            return p.equals("http") || p.equals("https") ? url : null;
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+    /**
+     * queues pending urls till maxInflight, (DownloadQueue is not called with lock on this, it may call back onDone)
+     */
+    private void next() {
+        while(true) {
+            URL url;
+            synchronized (this) {
+                if(broken)
+                    pending.clear();
+                if(inflight >= maxInflight || pending.isEmpty()) {
+                    if(inflight != 0 || !pending.isEmpty())
+                        return;
+                    finished = true;
+                    notifyAll();
+                    url = null;
+                } else {
+                    url = pending.poll();
+                    inflight++;
+                }
+            }
+            if(url == null)
+                return;
+            if(!fetcher.fetch(url, () -> done(url))) {
+                synchronized (this) {
+                    inflight--;
+                }
+                settled("rejected", url, null);
+            }
+        }
+    }
+    private void done(URL url) {
+        FileUnit unit = null;
+        try {
+            unit = fetcher.cached(url);
+        } catch (IOException e) {
+            Utils.error(url, "batch lookup failed", e);
+        }
+        synchronized (this) {
+            inflight--;
+        }
+        settled(unit != null ? "fetched" : "failed", url, unit);
+        next();
+    }
+    private void settled(String status, Object url, FileUnit unit) {
+        synchronized (this) {
+            counts.merge(status, 1, Integer::sum);
+            if(!closed) {
+                settled.add(new Settled(status+"\t"+url+"\n", url, unit));
+                notifyAll();
+                return;
+            }
+        }
+        if(unit != null) {
+            try {
+                unit.close();
+            } catch (IOException e) {}
+        }
+    }
+    /**
+     * writes settled urls as they are queued, and finishes response once all are
+     */
+    private void write() {
+        while(true) {
+            Settled next;
+            synchronized (this) {
+                try {
+                    while(settled.isEmpty() && !finished)
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    broken = true;
+                }
+                next = settled.poll();
+                if(next == null)
+                    break;
+            }
+            write(next);
+        }
+        finish();
+    }
+    private void write(Settled s) {
+        try {
+            synchronized (this) {
+                if(broken)
+                    return;
+            }
+            if(zip == null) {
+                out.write(s.line.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } else {
+                statuses.append(s.line);
+                if(s.unit != null) {
+                    zip.putNextEntry(new ZipEntry(entry((URL)s.url)));
+                    pipe(s.unit.getInputStream(), zip, s.unit.getSize());
+                    zip.closeEntry();
+                    zip.flush();
+                }
+            }
+        } catch (IOException e) {
+            // client is gone, nothing more is queued
+            synchronized (this) {
+                broken = true;
+            }
+            Utils.error(s.url, "batch response failed", e);
+        } finally {
+            if(s.unit != null) {
+                try {
+                    s.unit.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+    /**
+     * entry of url, made unique (e.g. same resource over http and https) as a duplicate entry fails the zip
+     */
+    private String entry(URL url) {
+        String query = url.getQuery();
+        String name = url.getHost()+url.getPath()+(query == null ? "" : "-"+query.hashCode());
+        String entry = name;
+        for (int i = 1; !entries.add(entry); i++)
+            entry = name+"~"+i;
+        return entry;
+    }
+    private void finish() {
+        try {
+            String counts;
+            synchronized (this) {
+                counts = broken ? null : this.counts.toString();
+            }
+            if(counts != null) {
+                if(zip == null)
+                    out.write(("# "+counts+"\n").getBytes(StandardCharsets.UTF_8));
+                else {
+                    zip.putNextEntry(new ZipEntry(STATUS_ENTRY));
+                    zip.write(statuses.append("# ").append(counts).append('\n').toString().getBytes(StandardCharsets.UTF_8));
+                    zip.closeEntry();
+                    zip.finish();
+                }
+            }
+        } catch (IOException e) {
+            Utils.error(exchange.getRequestURI(), "batch response failed", e);
+        } finally {
+            close();
+        }
+    }
+    private void close() {
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+        }
+        try {
+            exchange.close();
+        } finally {
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package sam.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * admission control for {@link DownloadTask}s.
+ * at most maxConcurrent tasks run at once (maxPerHost per upstream host), rest wait in a bounded priority queue,
+ * tasks offered when queue is full are rejected.
+ */
+final class DownloadQueue {
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final int maxQueued;
+    private final Consumer<DownloadTask> executor;
+    private final Consumer<DownloadTask> rejected;
+
+    private final PriorityQueue<DownloadTask> pending = new PriorityQueue<>(Comparator.<DownloadTask>comparingInt(t -> t.priority).thenComparingLong(t -> t.seq));
+    private final Map<String, Integer> perHost = new HashMap<>();
+    private int active;
+    private long seq;
+
+    private long dispatched;
+    private long shed;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param rejected called with tasks executor did not accept (e.g. after shutdown), after their root is released
+     */
+    DownloadQueue(int maxConcurrent, int maxPerHost, int maxQueued, Consumer<DownloadTask> executor, Consumer<DownloadTask> rejected) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return false if queue is full, task is not accepted
+     */
+    synchronized boolean offer(DownloadTask task) {
+        if(pending.size() >= maxQueued) {
+            shed++;
+            return false;
+        }
+        task.seq = seq++;
+        task.queuedAt = System.nanoTime();
+        pending.add(task);
+        dispatch();
+        return true;
+    }
+    synchronized void completed(DownloadTask task) {
+        active--;
+        perHost.computeIfPresent(task.host(), (h, n) -> n == 1 ? null : n - 1);
+        dispatch();
+    }
+    private void dispatch() {
+        List<DownloadTask> skipped = null;
+
+        while(active < maxConcurrent && !pending.isEmpty()) {
+            DownloadTask t = pending.poll();
+            String host = t.host();
+
+            if(perHost.getOrDefault(host, 0) >= maxPerHost) {
+                if(skipped == null)
+                    skipped = new ArrayList<>();
+                skipped.add(t);
+                continue;
+            }
+            try {
+                executor.accept(t);
+            } catch (RejectedExecutionException e) {
+                t.root.release();
+                rejected.accept(t);
+                t.done();
+                continue;
+            }
+            active++;
+            perHost.merge(host, 1, Integer::sum);
+
+            long wait = System.nanoTime() - t.queuedAt;
+            dispatched++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+        }
+        if(skipped != null)
+            pending.addAll(skipped);
+    }
+
+    synchronized int getQueued() { return pending.size(); }
+    synchronized int getActive() { return active; }
+    synchronized long getShed() { return shed; }
+    synchronized long getAverageWaitMillis() { return dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / dispatched); }
+    synchronized long getMaxWaitMillis() { return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos); }
+
+    synchronized String status() {
+        return "downloads.active: "+active+"/"+maxConcurrent+"\n"+
+                "downloads.queued: "+pending.size()+"/"+maxQueued+"\n"+
+                "downloads.shed: "+shed+"\n"+
+                "downloads.dispatched: "+dispatched+"\n"+
+                "downloads.wait.avg.ms: "+getAverageWaitMillis()+"\n"+
+                "downloads.wait.max.ms: "+getMaxWaitMillis()+"\n"+
+                "downloads.per.host: "+perHost+"\n";
+    }
+}
@@ -18,21 +18,23 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.sun.net.httpserver.HttpExchange;
+import sam.server.events.DownloadEvent;
 
 public class DownloadTask implements Callable<DownloadTask.DownloadResult> {
+    static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/62.0.3202.89 Safari/537.36";
     private static final ConcurrentMap<URL, Downloaded> downloaded = new ConcurrentHashMap<>();
 
     public static Downloaded getDownloaded(URL url) {
         return downloaded.get(url);
     }
+    static void updateDownloaded(URL url, Downloaded d) {
+        downloaded.put(url, d);
+    }
 
     public static final class DownloadResult {
         private final Path path;
@@ -46,9 +48,18 @@ public class DownloadTask implements Callable<DownloadTask.DownloadResult> {
         public String getName() { return name; }
     }
 
+    // batch downloads have no exchange, nothing is sent for them
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
     private final URL url;
     private final String name;
-    private final HttpExchange exchange;
+    private final RelayedResponse response;
+    private Runnable onDone;
 
     String mime = null;
 
@@ -57,91 +68,251 @@ public class DownloadTask implements Callable<DownloadTask.DownloadResult> {
     private int bytesRead;
     private String format;
     private double total;
-    private final AtomicBoolean canceller;
+    final RootRef root;
+    final int priority;
+    long seq;
+    long queuedAt;
     private boolean downloadableAsServerResource;
+    private final CssRewriter css;
 
-    public DownloadTask(AtomicBoolean canceller, URL url, String name, HttpExchange exchange, boolean downloadableAsServerResource) {
+    /**
+     * @param response filled by this, sent by thread of its exchange. null if nothing is to be sent
+     */
+    DownloadTask(RootRef root, URL url, String name, RelayedResponse response, boolean downloadableAsServerResource, CssRewriter css) {
         this.url = url;
         this.name = name;
-        this.exchange = exchange;
-        this.canceller = canceller;
+        this.response = response;
+        this.root = root;
         this.downloadableAsServerResource = downloadableAsServerResource;
+        this.priority = priority(url);
+        this.css = css;
+    }
+    String host() {
+        return url.getHost();
+    }
+    URL url() {
+        return url;
+    }
+    /**
+     * null for downloads of a batch
+     */
+    RelayedResponse response() {
+        return response;
+    }
+    /**
+     * @param onDone called once task is over, after its result is persisted
+     */
+    DownloadTask onDone(Runnable onDone) {
+        this.onDone = onDone;
+        return this;
+    }
+    void done() {
+        if(response != null)
+            response.done();
+        if(onDone != null)
+            onDone.run();
+    }
+    /**
+     * lower is sooner, render blocking resources first, media last
+     */
+    private static int priority(URL url) {
+        String path = url.getPath().toLowerCase();
+        int index = path.lastIndexOf('.');
+        String ext = index < 0 ? "" : path.substring(index + 1);
+
+        switch (ext) {
+            case "css":
+            case "js":
+                return 0;
+            case "html":
+            case "htm":
+            case "json":
+                return 1;
+            case "woff":
+            case "woff2":
+            case "ttf":
+            case "otf":
+            case "eot":
+                return 2;
+            case "png":
+            case "jpg":
+            case "jpeg":
+            case "gif":
+            case "svg":
+            case "webp":
+            case "ico":
+                return 3;
+            default:
+                return 4;
+        }
     }
     private boolean isCancelled() {
-        return canceller.get();
+        return root.canceller.get();
     }
 
     @Override
     public DownloadResult call() throws Exception {
-        if(isCancelled()) return null;
+        // phase is set to how task ended 
+        DownloadEvent task = new DownloadEvent("failed");
+        task.begin();
+        if(isCancelled()) {
+            task.phase = "cancelled";
+            record(task);
+            return null;
+        }
 
         InputStream inputStream = null;
         OutputStream responseBody = null;
         OutputStream file = null;
+        byte[] buffer = null;
+        SharedDownloads.Lease lease = null;
 
         try {
+            // DOWNLOADS_DIR is shared with other instances, only one of them fetches a name
+            if(downloadableAsServerResource) {
+                while(true) {
+                    Path target = DOWNLOADS_DIR.resolve(name);
+                    if(Files.exists(target)) {
+                        task.phase = "shared";
+                        sendShared(target);
+                        return null;
+                    }
+                    if((lease = SharedDownloads.acquire(name)) != null)
+                        break;
+                    if(SharedDownloads.tail(name, sharedOutput())) {
+                        task.phase = "shared";
+                        print(url, yellow("shared: downloaded/"+name));
+                        return null;
+                    }
+                }
+            }
             save_cursor();
             System.out.println(yellow("downloading: ")+url);
+            DownloadEvent connect = new DownloadEvent("connect");
+            connect.begin();
             URLConnection con = getConnection();
 
-            if(isCancelled()) return null;
+            if(isCancelled()) {
+                task.phase = "cancelled";
+                return null;
+            }
 
             total = con.getContentLength();
             mime = con.getContentType();
             inputStream = con.getInputStream();
+            record(connect);
+            DownloadEvent firstByte = new DownloadEvent("first-byte");
+            firstByte.begin();
+            if(lease != null)
+                lease.started(mime);
             String name2 = prepareName(name, mime);
 
             Path path;
             if(name2 != null && Files.exists(path = LOOK_DOWNLOADS_DIR.resolve(name2))) {
-                Server.sendFile(path, exchange, name2, url);
+                if(response != null)
+                    response.sendFile(path, mime != null ? mime : getMime(name2));
+                task.phase = "complete";
                 return new DownloadResult(path, name2);
             }
 
-            responseBody = total <= 0 ? null : setSendHeader(exchange, (long)total, mime);
-            Path temp  = Files.createTempFile("server-download", "");
+            // stylesheet is sent as it is rewritten, its length is not known 
+            if(response == null)
+                responseBody = DISCARD;
+            else if(css != null && CssRewriter.isCss(mime))
+                responseBody = css.wrap(response.open(0, mime), url);
+            else
+                // unknown length (-1) is sent chunked (0), as it is downloaded. empty body is -1 for HttpExchange
+                responseBody = response.open(total < 0 ? 0 : total == 0 ? -1 : (long)total, mime);
+            Path temp  = lease != null ? lease.part() : Files.createTempFile("server-download", "");
             file = Files.newOutputStream(temp);
 
             format = "%s / "+green(bytesToString(total)) + cyan(" | ") + (total < 0 ? red(" -- ") : yellow(" %.2f%%")) + cyan(" | ") + "%d Kb/sec"
                     + (total < 0 ? "" : cyan(" | ") + yellow("time-left: ") + " %s");
 
-            byte[] buffer = createBuffer();
+            buffer = BufferPool.acquire((long)total);
             int n = 0;
             while((n = inputStream.read(buffer)) > 0) {
+                if(firstByte != null) {
+                    record(firstByte);
+                    firstByte = null;
+                }
                 file.write(buffer, 0, n);
-                if(responseBody != null)
-                    responseBody.write(buffer, 0, n);
+                responseBody.write(buffer, 0, n);
 
                 bytesRead += n;
-                if(responseBody != null)
-                    progress();
+                progress();
             }
-            if(responseBody == null) {
-                file.close();
-                responseBody = setSendHeader(exchange, bytesRead == n ? bytesRead : Files.size(temp), mime);
-                if(bytesRead == n)
-                    responseBody.write(buffer, 0, n);
-                else {
-                    n = 0;
-                    try(InputStream is = Files.newInputStream(temp)) {
-                        while((n = is.read(buffer)) > 0)
-                            responseBody.write(buffer, 0, n);
-                    }
-                } 
-            }
-            downloaded.put(url, new Downloaded(temp, mime));
+            if(total >= 0 && bytesRead != total)
+                throw new IOException("premature end of download: "+bytesRead+"/"+total);
+            // upstream is at its end, response is complete (it is aborted if download fails before this)
+            responseBody.close();
+            responseBody = null;
+            Downloaded d = Downloaded.of(temp, con);
 
             if(downloadableAsServerResource) {
-                Files.move(temp, DOWNLOADS_DIR.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                file.close();
+                d = d.withPath(DOWNLOADS_DIR.resolve(name));
+                // meta first, others take the file as complete once it is in place 
+                try {
+                    d.save();
+                } catch (IOException e) {
+                    Utils.error(url, "failed to save meta", e);
+                }
+                lease.commit();
+                downloaded.put(url, d);
                 print(url , yellow("downloaded/"+name));    
+                task.phase = "complete";
                 return null;
             }
+            downloaded.put(url, d);
             name2 = prepareName(name, mime);
             print(url, name2);
+            task.phase = "complete";
             return new DownloadResult(temp, name2);
         } finally {
-            Utils.closeThese(responseBody, inputStream, file);
+            // closing would end a chunked body, client must not take a truncated one as complete
+            if(responseBody != null && responseBody != DISCARD)
+                response.abort();
+            BufferPool.release(buffer);
+            Utils.closeThese(responseBody, inputStream, file, lease);
+            record(task);
         }
     }
+    private void record(DownloadEvent e) {
+        e.end();
+        if(e.shouldCommit()) {
+            e.url = url.toString();
+            e.bytes = bytesRead;
+            e.commit();
+        }
+    }
+    private void sendShared(Path file) {
+        Downloaded d = Downloaded.load(file);
+        downloaded.put(url, d);
+        if(response != null)
+            response.sendFile(file, d.getMime() != null ? d.getMime() : getMime(name));
+    }
+    private SharedDownloads.OutputOpener sharedOutput() {
+        return new SharedDownloads.OutputOpener() {
+            @Override
+            public OutputStream open(String mime) throws IOException {
+                DownloadTask.this.mime = mime;
+                if(response == null)
+                    return DISCARD;
+                OutputStream os = response.open(0, mime);
+                return css != null && CssRewriter.isCss(mime) ? css.wrap(os, url) : os;
+            }
+            @Override
+            public void sendFile(Path file) {
+                sendShared(file);
+            }
+            @Override
+            public void abort() {
+                if(response != null)
+                    response.abort();
+            }
+        };
+    }
     private void progress() {
         long timepassed = System.currentTimeMillis() - last;
         if (timepassed >= 1000) {
@@ -166,7 +337,7 @@ public class DownloadTask implements Callable<DownloadTask.DownloadResult> {
         URLConnection con = url.openConnection();
         con.setConnectTimeout(CONNECT_TIMEOUT);
         con.setReadTimeout(READ_TIMEOUT);
-        con.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/62.0.3202.89 Safari/537.36");
+        con.setRequestProperty("User-Agent", USER_AGENT);
 
         return con;
     }
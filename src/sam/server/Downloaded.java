@@ -1,13 +1,37 @@
 package sam.server;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * a cached download along with upstream validators (ETag, Last-Modified) and freshness (from Cache-Control/Expires).
+ * for files in {@link ServerUtils#DOWNLOADS_DIR} it is persisted in ".meta" folder next to the file.
+ */
 public final class Downloaded {
+    private static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
     private final Path downloadPath;
     private final String mime;
+    private final String etag;
+    private final long lastModified;
+    private final long expires;
+
     public Downloaded(Path downloadPath, String mime) {
+        this(downloadPath, mime, null, 0, System.currentTimeMillis() + DEFAULT_MAX_AGE);
+    }
+    public Downloaded(Path downloadPath, String mime, String etag, long lastModified, long expires) {
         this.downloadPath = downloadPath;
         this.mime = mime;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
     }
     public Path getDownloadPath() {
         return downloadPath;
@@ -15,4 +39,116 @@ public final class Downloaded {
     public String getMime() {
         return mime;
     }
+    public String getEtag() {
+        return etag;
+    }
+    /**
+     * @return upstream Last-Modified in millis, 0 if not known
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+    public long getExpires() {
+        return expires;
+    }
+    public boolean isStale() {
+        return System.currentTimeMillis() >= expires;
+    }
+    public Downloaded withPath(Path path) {
+        return new Downloaded(path, mime, etag, lastModified, expires);
+    }
+
+    /**
+     * reads validators and freshness from upstream response
+     */
+    public static Downloaded of(Path path, URLConnection con) {
+        long now = System.currentTimeMillis();
+        long lastModified = con.getLastModified();
+        return new Downloaded(path, con.getContentType(), con.getHeaderField("ETag"), lastModified, expires(con, now, lastModified));
+    }
+    /**
+     * after a 304, validators are kept, freshness is renewed
+     */
+    public Downloaded revalidated(URLConnection con) {
+        long now = System.currentTimeMillis();
+        String etag = con.getHeaderField("ETag");
+        return new Downloaded(downloadPath, mime, etag == null ? this.etag : etag, lastModified, expires(con, now, lastModified));
+    }
+    private static long expires(URLConnection con, long now, long lastModified) {
+        String cacheControl = con.getHeaderField("Cache-Control");
+
+        if(cacheControl != null) {
+            for (String s : cacheControl.toLowerCase().split(",")) {
+                s = s.trim();
+                if(s.equals("immutable"))
+                    return Long.MAX_VALUE;
+                if(s.equals("no-cache") || s.equals("no-store"))
+                    return now;
+                if(s.startsWith("max-age=")) {
+                    try {
+                        return now + TimeUnit.SECONDS.toMillis(Long.parseLong(s.substring(8).trim()));
+                    } catch (NumberFormatException e) {}
+                }
+            }
+        }
+        long expiration = con.getExpiration();
+        if(expiration > 0) {
+            long date = con.getDate();
+            return now + (expiration - (date > 0 ? date : now));
+        }
+        // heuristic freshness, 10% of age
+        if(lastModified > 0 && lastModified < now)
+            return now + Math.min((now - lastModified) / 10, DEFAULT_MAX_AGE);
+
+        return now + DEFAULT_MAX_AGE;
+    }
+
+    public static Path metaPath(Path file) {
+        return file.resolveSibling(".meta").resolve(file.getFileName()+".properties");
+    }
+    /**
+     * @return persisted meta of file, or a meta guessed from file's last-modified time if none
+     */
+    public static Downloaded load(Path file) {
+        Path meta = metaPath(file);
+        if(Files.exists(meta)) {
+            Properties p = new Properties();
+            try(InputStream is = Files.newInputStream(meta)) {
+                p.load(is);
+                return new Downloaded(file, p.getProperty("mime"), p.getProperty("etag"),
+                        Long.parseLong(p.getProperty("last-modified", "0")), Long.parseLong(p.getProperty("expires", "0")));
+            } catch (IOException | NumberFormatException e) {
+                System.out.println(Utils.red("failed to read: ")+meta+"  "+e);
+            }
+        }
+        long fetched;
+        try {
+            fetched = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            fetched = 0;
+        }
+        return new Downloaded(file, null, null, 0, fetched + DEFAULT_MAX_AGE);
+    }
+    public void save() throws IOException {
+        Path meta = metaPath(downloadPath);
+        Files.createDirectories(meta.getParent());
+
+        Properties p = new Properties();
+        if(mime != null)
+            p.setProperty("mime", mime);
+        if(etag != null)
+            p.setProperty("etag", etag);
+        p.setProperty("last-modified", String.valueOf(lastModified));
+        p.setProperty("expires", String.valueOf(expires));
+
+        Path temp = Files.createTempFile(meta.getParent(), meta.getFileName().toString(), ".tmp");
+        try {
+            try(OutputStream os = Files.newOutputStream(temp)) {
+                p.store(os, null);
+            }
+            Files.move(temp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
 }
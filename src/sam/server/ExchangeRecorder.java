@@ -0,0 +1,104 @@
+package sam.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import sam.server.events.ExchangeEvent;
+
+/**
+ * emits an {@link ExchangeEvent} per exchange, (only wraps response when event is enabled).
+ * event ends when response body is closed, as downloads are answered after handler has returned.
+ */
+final class ExchangeRecorder extends Filter {
+    private final Supplier<String> rootType;
+
+    ExchangeRecorder(Supplier<String> rootType) {
+        this.rootType = rootType;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        ExchangeEvent event = new ExchangeEvent();
+        if(!event.isEnabled()) {
+            chain.doFilter(exchange);
+            return;
+        }
+
+        event.begin();
+        CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody(), exchange, event);
+        exchange.setStreams(null, out);
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            // response without body is complete once its headers are sent, it is not closed through this stream.
+            // others are committed on close, downloads are answered after handler has returned
+            if(hasNoBody(exchange))
+                out.commit();
+        }
+    }
+    /**
+     * sendResponseHeaders(code, -1) sets "Content-length: 0" (none for 204 and 304)
+     */
+    private static boolean hasNoBody(HttpExchange exchange) {
+        int code = exchange.getResponseCode();
+        if(code == -1)
+            return false;
+        return code == 204 || code == 304 || "HEAD".equals(exchange.getRequestMethod())
+                || "0".equals(exchange.getResponseHeaders().getFirst("Content-length"));
+    }
+    @Override
+    public String description() {
+        return "jfr exchange events";
+    }
+
+    private final class CountingOutputStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final ExchangeEvent event;
+        private final AtomicBoolean committed = new AtomicBoolean();
+        private volatile long count;
+
+        CountingOutputStream(OutputStream out, HttpExchange exchange, ExchangeEvent event) {
+            super(out);
+            this.exchange = exchange;
+            this.event = event;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                commit();
+            }
+        }
+        void commit() {
+            if(!committed.compareAndSet(false, true))
+                return;
+
+            event.end();
+            if(event.shouldCommit()) {
+                event.uri = exchange.getRequestURI().toString();
+                event.context = exchange.getHttpContext().getPath();
+                event.root = rootType.get();
+                event.status = exchange.getResponseCode();
+                event.bytes = count;
+                event.commit();
+            }
+        }
+    }
+}
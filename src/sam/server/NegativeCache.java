@@ -0,0 +1,139 @@
+package sam.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * keys (see {@link AccessStats} for key format) known to be missing in a root, so repeated misses (broken links, crawlers)
+ * are answered without stat calls or zip/directory scans.
+ * <br>
+ * a bloom filter records every miss, a key is held in (bounded) exact set only when it misses again,
+ * so one-off misses do not evict repeated ones. exact set alone decides a miss, bloom filter false positives only cost a lookup.
+ * bloom filter is also checked first, so most lookups (which are hits) do not take the lock.
+ * <br>
+ * a miss is recorded with {@link #version()} taken before the lookup, it is dropped if anything was added since,
+ * (lookup may have raced with an add).
+ */
+final class NegativeCache {
+    private static final int BITS = 1 << 17;
+    private static final int HASHES = 3;
+    private static final int MAX_KEYS = 4096;
+    // beyond this, false positive rate grows, filter is rebuilt from exact set
+    private static final int MAX_INSERTS = BITS / 10;
+
+    private final AtomicLongArray bits = new AtomicLongArray(BITS / 64);
+    private final AtomicInteger inserts = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private final Map<String, Boolean> exact = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    boolean isMissing(String key) {
+        if(!mightContain(key))
+            return false;
+        synchronized (exact) {
+            return exact.get(key) != null;
+        }
+    }
+    long version() {
+        return version.get();
+    }
+    /**
+     * @param version {@link #version()} before key was looked up
+     */
+    void missed(String key, long version) {
+        // bloom filter alone does not make a miss, a stale bit is harmless
+        if(!mightContain(key)) {
+            put(key);
+            return;
+        }
+        synchronized (exact) {
+            if(this.version.get() == version)
+                exact.put(key, Boolean.TRUE);
+        }
+    }
+    /**
+     * resource added to root, with name as relative path in root.
+     * its parent folders are no longer missing either
+     */
+    void added(String name) {
+        if(name == null) {
+            clear();
+            return;
+        }
+        name = name.replace('\\', '/');
+        synchronized (exact) {
+            version.incrementAndGet();
+            int dot = name.lastIndexOf('.');
+            exact.remove(AccessStats.HASH+(dot < 0 ? name : name.substring(0, dot)));
+
+            String path = name.startsWith("/") ? name : "/"+name;
+            while(!path.isEmpty()) {
+                exact.remove(path);
+                exact.remove(path+"/");
+                path = path.substring(0, path.lastIndexOf('/'));
+            }
+        }
+    }
+    void clear() {
+        synchronized (exact) {
+            version.incrementAndGet();
+            exact.clear();
+            for (int i = 0; i < bits.length(); i++)
+                bits.set(i, 0);
+            inserts.set(0);
+        }
+    }
+
+    private boolean mightContain(String key) {
+        long h = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(h, i);
+            if((bits.get(bit >>> 6) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+    private void put(String key) {
+        if(inserts.incrementAndGet() > MAX_INSERTS) {
+            synchronized (exact) {
+                if(inserts.get() > MAX_INSERTS) {
+                    for (int i = 0; i < bits.length(); i++)
+                        bits.set(i, 0);
+                    inserts.set(0);
+                    exact.keySet().forEach(this::set);
+                }
+            }
+        }
+        set(key);
+    }
+    private void set(String key) {
+        long h = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(h, i);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long v;
+            while(((v = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, v, v | mask));
+        }
+    }
+    private static long hash(String key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 29;
+        return h;
+    }
+    private static int index(long h, int i) {
+        // double hashing, from two halves of h
+        return (int) (((h >>> 32) + i * (h & 0xFFFFFFFFL | 1)) & (BITS - 1));
+    }
+}
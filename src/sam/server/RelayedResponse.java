@@ -0,0 +1,228 @@
+package sam.server;
+
+import static sam.server.ServerUtils.setSendHeader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * response of a {@link DownloadTask}, produced on download thread and sent by thread of its exchange (handler).
+ * <br>
+ * download thread writes body into a spool file and never waits on client, handler thread sends the spool as it grows.
+ * so a slow or throttled client ({@link TrafficShaper} sleeps in writer) does not hold a download slot.
+ * spool is deleted once both are done with it, a client gone does not fail the download (it is still cached).
+ */
+final class RelayedResponse {
+    private final HttpExchange exchange;
+    private final URL url;
+    private final CssRewriter css;
+
+    private Path file;
+    private String mime;
+    private long length;
+    private Path spool;
+    private long written;
+    private boolean opened, ended, failed, unavailable, done;
+    private boolean writerClosed, readerClosed;
+
+    /**
+     * @param css as for {@link Server#sendFile(Path, HttpExchange, String, URL, CssRewriter)}
+     */
+    RelayedResponse(HttpExchange exchange, URL url, CssRewriter css) {
+        this.exchange = exchange;
+        this.url = url;
+        this.css = css;
+    }
+
+    /**
+     * body is to be written to returned stream, and it closed once complete (see {@link #abort()})
+     * @param length as for {@link HttpExchange#sendResponseHeaders(int, long)}
+     */
+    OutputStream open(long length, String mime) throws IOException {
+        Path spool = Files.createTempFile("server-response", "");
+        OutputStream out;
+        try {
+            out = Files.newOutputStream(spool);
+        } catch (IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+        synchronized (this) {
+            this.spool = spool;
+            this.length = length;
+            this.mime = mime;
+            this.opened = true;
+            notifyAll();
+        }
+        return new SpoolStream(out);
+    }
+    /**
+     * complete file is sent as it is
+     */
+    synchronized void sendFile(Path file, String mime) {
+        this.file = file;
+        this.mime = mime;
+        notifyAll();
+    }
+    /**
+     * ends response (opened or not) without completing it
+     */
+    synchronized void abort() {
+        failed = true;
+        notifyAll();
+    }
+    /**
+     * download was not accepted
+     */
+    synchronized void unavailable() {
+        unavailable = true;
+        notifyAll();
+    }
+    /**
+     * download is over, whatever was not sent by now, is not going to be
+     */
+    synchronized void done() {
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * sends response once download thread has produced it, returns once it is sent (or aborted).
+     * @return false if download was not accepted, nothing is sent in this case
+     */
+    boolean send() throws IOException {
+        Path file;
+        synchronized (this) {
+            try {
+                while(this.file == null && !opened && !failed && !unavailable && !done)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+            if(unavailable)
+                return false;
+            file = this.file;
+        }
+        if(file != null) {
+            Server.sendFile(file, exchange, mime, url, css);
+            return true;
+        }
+        if(!opened) {
+            // failed before upstream responded (spool, if opened after all, is deleted by writer)
+            closed(false);
+            exchange.sendResponseHeaders(502, -1);
+            exchange.close();
+            return true;
+        }
+
+        boolean complete = false;
+        try(FileChannel channel = FileChannel.open(spool, StandardOpenOption.READ)) {
+            OutputStream os = setSendHeader(exchange, length, mime);
+            byte[] bytes = BufferPool.acquire(-1);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = 0;
+                while(true) {
+                    long available;
+                    synchronized (this) {
+                        while(position >= written && !ended && !failed && !done)
+                            wait();
+                        available = written;
+                        if(position >= available) {
+                            complete = ended;
+                            break;
+                        }
+                    }
+                    while(position < available) {
+                        buffer.clear();
+                        buffer.limit((int)Math.min(bytes.length, available - position));
+                        int n = channel.read(buffer, position);
+                        if(n < 0)
+                            throw new IOException("spool truncated: "+url);
+                        os.write(bytes, 0, n);
+                        position += n;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                BufferPool.release(bytes);
+                if(complete)
+                    os.close();
+                else
+                    ResponseAborter.abort(exchange);
+            }
+        } finally {
+            closed(false);
+        }
+        return true;
+    }
+    /**
+     * spool is deleted once both writer and reader are done with it
+     */
+    private void closed(boolean writer) {
+        Path delete = null;
+        synchronized (this) {
+            if(writer)
+                writerClosed = true;
+            else
+                readerClosed = true;
+            if(writerClosed && readerClosed)
+                delete = spool;
+        }
+        if(delete != null) {
+            try {
+                Files.deleteIfExists(delete);
+            } catch (IOException e) {
+                Utils.error(url, "failed to delete spool", e);
+            }
+        }
+    }
+
+    private final class SpoolStream extends OutputStream {
+        private final OutputStream out;
+        private boolean closed;
+
+        SpoolStream(OutputStream out) {
+            this.out = out;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            synchronized (RelayedResponse.this) {
+                written += len;
+                RelayedResponse.this.notifyAll();
+            }
+        }
+        @Override
+        public void close() throws IOException {
+            if(closed)
+                return;
+            closed = true;
+            try {
+                out.close();
+            } finally {
+                synchronized (RelayedResponse.this) {
+                    ended = !failed;
+                    RelayedResponse.this.notifyAll();
+                }
+                closed(true);
+            }
+        }
+    }
+}
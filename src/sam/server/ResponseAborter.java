@@ -0,0 +1,65 @@
+package sam.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * lets a response sent as it is produced (chunked) be aborted, so client sees a reset connection instead of
+ * a body which looks complete.
+ * <br>
+ * HttpExchange drops the connection only when closing the response fails, so this is to be the first filter
+ * (its stream is below the ones of other filters), its close fails once aborted, without ending the chunked stream.
+ */
+final class ResponseAborter extends Filter {
+    // exchange attributes are shared by the context, not per exchange
+    private static final Map<HttpExchange, AbortableStream> streams = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        AbortableStream out = new AbortableStream(exchange.getResponseBody(), exchange);
+        exchange.setStreams(null, out);
+        streams.put(exchange, out);
+        chain.doFilter(exchange);
+    }
+    /**
+     * ends exchange without completing its response (completes it if exchange is not filtered by this)
+     */
+    static void abort(HttpExchange exchange) {
+        AbortableStream out = streams.get(exchange);
+        if(out != null)
+            out.aborted = true;
+        exchange.close();
+    }
+    @Override
+    public String description() {
+        return "aborts responses";
+    }
+
+    private static final class AbortableStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private volatile boolean aborted;
+
+        AbortableStream(OutputStream out, HttpExchange exchange) {
+            super(out);
+            this.exchange = exchange;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        @Override
+        public void close() throws IOException {
+            streams.remove(exchange);
+            if(aborted)
+                throw new IOException("response aborted");
+            super.close();
+        }
+    }
+}
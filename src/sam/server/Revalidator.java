@@ -0,0 +1,118 @@
+package sam.server;
+
+import static sam.server.ServerUtils.CONNECT_TIMEOUT;
+import static sam.server.ServerUtils.DOWNLOADS_DIR;
+import static sam.server.ServerUtils.READ_TIMEOUT;
+import static sam.server.Utils.yellow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * serve-stale-while-revalidate for cached downloads.
+ * stale entries are still served, a conditional GET runs in background, and the cache is updated only if upstream changed.
+ */
+final class Revalidator {
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "revalidator");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<Path> inflight = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Path, Downloaded> metas = new ConcurrentHashMap<>();
+
+    /**
+     * for a file in DOWNLOADS_DIR, loads its (persisted) meta, revalidates it in background if stale
+     * @return current meta of file
+     */
+    Downloaded check(URL url, Path file) {
+        Downloaded d = metas.computeIfAbsent(file, Downloaded::load);
+        check(url, d, updated -> {
+            metas.put(file, updated);
+            try {
+                updated.save();
+            } catch (IOException e) {
+                Utils.error(url, "failed to save meta", e);
+            }
+        });
+        return d;
+    }
+    void check(URL url, Downloaded d, Consumer<Downloaded> onUpdate) {
+        if(!d.isStale() || !inflight.add(d.getDownloadPath()))
+            return;
+
+        executor.execute(() -> {
+            try {
+                onUpdate.accept(revalidate(url, d));
+            } catch (IOException e) {
+                Utils.error(url, "revalidation failed", e);
+            } finally {
+                inflight.remove(d.getDownloadPath());
+            }
+        });
+    }
+    /**
+     * loads persisted meta of a file in DOWNLOADS_DIR ahead of its first request
+     */
+    void preload(Path file) {
+        metas.computeIfAbsent(file, Downloaded::load);
+    }
+    void forget(Path file) {
+        metas.remove(file);
+    }
+
+    private Downloaded revalidate(URL url, Downloaded d) throws IOException {
+        // another instance sharing DOWNLOADS_DIR is on it
+        SharedDownloads.Lease lease = null;
+        Path file = d.getDownloadPath();
+        if(file.getParent().equals(DOWNLOADS_DIR) && (lease = SharedDownloads.acquire(file.getFileName().toString())) == null)
+            return d;
+
+        try {
+            return revalidate(url, d, file);
+        } finally {
+            Utils.closeThese(lease);
+        }
+    }
+    private Downloaded revalidate(URL url, Downloaded d, Path file) throws IOException {
+        URLConnection con = url.openConnection();
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(READ_TIMEOUT);
+        con.setRequestProperty("User-Agent", DownloadTask.USER_AGENT);
+        if(d.getEtag() != null)
+            con.setRequestProperty("If-None-Match", d.getEtag());
+        if(d.getLastModified() > 0)
+            con.setIfModifiedSince(d.getLastModified());
+
+        if(con instanceof HttpURLConnection && ((HttpURLConnection)con).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            ((HttpURLConnection)con).disconnect();
+            Utils.print(url, yellow("not modified"));
+            return d.revalidated(con);
+        }
+
+        // others may be reading file, it is only ever replaced atomically (if that fails, old file is kept)
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try(InputStream is = con.getInputStream()) {
+                Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Utils.print(url, yellow("updated: ")+file.getFileName());
+        return Downloaded.of(file, con);
+    }
+}
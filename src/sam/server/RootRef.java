@@ -0,0 +1,63 @@
+package sam.server;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sam.server.root.ServerRoot;
+
+/**
+ * reference counted holder of a {@link ServerRoot}.
+ * the server owns one reference until {@link #retire()}, every request pins one with {@link #retain()}.
+ * root is closed (and repacked) on a background thread once the last reference is released.
+ */
+final class RootRef {
+    final ServerRoot root;
+    final AtomicBoolean canceller = new AtomicBoolean(false);
+    final AccessStats stats;
+    final NegativeCache misses = new NegativeCache();
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    RootRef(ServerRoot root) {
+        this.root = root;
+        this.stats = new AccessStats(root.getRoot());
+    }
+    /**
+     * @return false if root is already released by all holders, caller should re-read the current root
+     */
+    boolean retain() {
+        while(true) {
+            int n = refs.get();
+            if(n == 0)
+                return false;
+            if(refs.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+    void release() {
+        if(refs.decrementAndGet() == 0) {
+            Thread t = new Thread(this::closeRoot, "close-root: "+root.getRoot().getFileName());
+            t.start();
+        }
+    }
+    void retire() {
+        release();
+    }
+    boolean awaitClosed(long millis) throws InterruptedException {
+        return closed.await(millis, TimeUnit.MILLISECONDS);
+    }
+    private void closeRoot() {
+        stats.save();
+        try {
+            root.close();
+        } catch (IOException e) {
+            System.out.println(Utils.red("failed to close root: ")+root.getRoot()+"  "+e);
+        } finally {
+            closed.countDown();
+        }
+    }
+}
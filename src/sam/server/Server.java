@@ -2,7 +2,9 @@ package sam.server;
 
 import static sam.server.ServerUtils.DOWNLOADS_DIR;
 import static sam.server.ServerUtils.LOOK_DOWNLOADS_DIR;
+import static sam.server.ServerUtils.READ_TIMEOUT;
 import static sam.server.ServerUtils.getMime;
+import static sam.server.ServerUtils.isText;
 import static sam.server.ServerUtils.pipe;
 import static sam.server.ServerUtils.setSendHeader;
 import static sam.server.Utils.green;
@@ -21,15 +23,20 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,32 +47,49 @@ import com.sun.net.httpserver.HttpServer;
 
 import sam.console.ansi.ANSI;
 import sam.server.DownloadTask.DownloadResult;
+import sam.server.events.CacheEvent;
+import sam.server.events.PersistEvent;
 import sam.server.root.DirectoryRoot;
 import sam.server.root.FileUnit;
+import sam.server.root.MappedZipRoot;
+import sam.server.root.PackCompiler;
+import sam.server.root.PackRoot;
 import sam.server.root.ServerRoot;
 import sam.server.root.ZipRoot;
 
 public class Server extends ThreadPoolExecutor implements AutoCloseable {
+    private static final boolean MAPPED_ZIP = Boolean.getBoolean("sam.zip.mapped");
+
     private final URI rootUri;
 
     final Predicate<String> downloadResourcesTester;
+    private final CssRewriter cssRewriter;
 
-    private volatile AtomicBoolean canceller;
-    private volatile ServerRoot file;
+    private final AtomicReference<RootRef> current = new AtomicReference<>();
     private final HttpServer hs;
     private Thread shutDownHook = ServerUtils.addShutdownHook(this); 
 
     private final Predicate<String> downloadAsServerResourcesPredicate;
     private final InetSocketAddress runningAt;
+    private final TrafficShaper trafficShaper;
+    private final Revalidator revalidator = new Revalidator();
+    private final DownloadQueue downloads;
+    private final int retryAfter;
+    private final int batchInflight;
+    private final int warmTop;
+    private final long warmIoBudget, warmMemoryBudget;
+    private final long statsSaveInterval;
     
-        protected void afterExecute(Runnable r, Throwable t) {
-            super.afterExecute(r, t);
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
 
-            if(r == null)
-                return;
+        if(!(r instanceof DownloadFuture))
+            return;
 
-            @SuppressWarnings("unchecked")
-            Future<DownloadResult> f = (Future<DownloadResult>)r;
+        DownloadFuture f = (DownloadFuture)r;
+        RootRef ref = f.task.root;
+        try {
             DownloadResult d = null;
             try {
                 d = f.get();
@@ -73,78 +97,260 @@ public class Server extends ThreadPoolExecutor implements AutoCloseable {
                 e.printStackTrace();
             }
 
-            if(d == null)
+            if(d == null || ref.canceller.get())
                 return;
 
-            synchronized (file) {
-                if(file == null)
-                    return;
-                
-                Path path = d.getPath();
-                String name = d.getName(); 
-
-                if (file instanceof ZipRoot)
-                    ((ZipRoot) file).addRepackFile(path, name);
-                else {
-                    DirectoryRoot dr = (DirectoryRoot) file;
-                    try {
-                        Files.copy(path, dr.root.resolve(name), StandardCopyOption.REPLACE_EXISTING);
-                    } catch (IOException e) {
-                        System.out.println("failed to copy: "+path+" -> "+dr.root.resolve(name)+"  error: "+e);
-                    }
+            Path path = d.getPath();
+            String name = d.getName(); 
+
+            PersistEvent event = new PersistEvent();
+            event.begin();
+            try {
+                ref.root.addFile(path, name);
+                ref.misses.added(name);
+            } catch (IOException e) {
+                System.out.println("failed to copy: "+path+" -> "+ref.root.getRoot()+"/"+name+"  error: "+e);
+            } finally {
+                event.end();
+                if(event.shouldCommit()) {
+                    event.name = name;
+                    event.root = ref.root.getClass().getSimpleName();
+                    event.bytes = path.toFile().length();
+                    event.commit();
                 }
             }
+        } finally {
+            ref.release();
+            downloads.completed(f.task);
+            f.task.done();
         }
-        
+    }
+    @SuppressWarnings("unchecked")
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        if(callable instanceof DownloadTask)
+            return (RunnableFuture<T>) new DownloadFuture((DownloadTask) callable);
+        return super.newTaskFor(callable);
+    }
+
+    private static final class DownloadFuture extends FutureTask<DownloadResult> {
+        final DownloadTask task;
+
+        DownloadFuture(DownloadTask task) {
+            super(task);
+            this.task = task;
+        }
+    }
+
     public Server(int port) throws Exception {
-        super(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
-        
+        this(ResourceBundle.getBundle("1509617391333-server_config"), port);
+    }
+    private Server(ResourceBundle rb, int port) throws Exception {
+        // downloads beyond download.max.concurrent are held by DownloadQueue, not by executor 
+        super(Integer.parseInt(rb.getString("download.max.concurrent")), Integer.parseInt(rb.getString("download.max.concurrent")), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        allowCoreThreadTimeOut(true);
+
         runningAt = new InetSocketAddress("localhost", port);
         rootUri = new URI("/");
-        
-        ResourceBundle rb = ResourceBundle.getBundle("1509617391333-server_config");
+
+        downloads = new DownloadQueue(getMaximumPoolSize(), Integer.parseInt(rb.getString("download.max.per.host")), Integer.parseInt(rb.getString("download.max.queued")), this::submit, t -> {
+            if(t.response() != null)
+                t.response().unavailable();
+        });
+        retryAfter = Integer.parseInt(rb.getString("download.retry.after"));
+        batchInflight = Integer.parseInt(rb.getString("download.batch.inflight"));
+        warmTop = Integer.parseInt(rb.getString("warm.top"));
+        warmIoBudget = Long.parseLong(rb.getString("warm.io.budget"));
+        warmMemoryBudget = Long.parseLong(rb.getString("warm.memory.budget"));
+        statsSaveInterval = Long.parseLong(rb.getString("stats.save.interval"));
         
         downloadAsServerResourcesPredicate = new Tester(rb.getString("download.as.server.resources"));        
         downloadResourcesTester = new Tester(rb.getString("download.resources"));
+        cssRewriter = new CssRewriter(downloadResourcesTester);
+        trafficShaper = new TrafficShaper(Long.parseLong(rb.getString("rate.global")), Long.parseLong(rb.getString("rate.client")), Long.parseLong(rb.getString("rate.free.bytes")));
+
+        int handlerThreads = Integer.parseInt(rb.getString("handler.threads"));
 
         ResourceBundle.clearCache();
         hs = HttpServer.create(runningAt, 10);
+        // handlers block (traffic shaping, piping bodies), not to be run on the single dispatcher thread 
+        hs.setExecutor(handlers(handlerThreads));
 
-        hs.createContext(rootUri.toString(), new SimpleHandler());
+        ExchangeRecorder recorder = new ExchangeRecorder(this::rootType);
+        // first, aborted response is below streams of other filters
+        ResponseAborter aborter = new ResponseAborter();
+        hs.createContext(rootUri.toString(), new SimpleHandler()).getFilters().addAll(Arrays.asList(aborter, recorder, trafficShaper));
         // handle caching resource 
-        hs.createContext("/download", new DownloadHandler());
+        hs.createContext("/download", new DownloadHandler()).getFilters().addAll(Arrays.asList(aborter, recorder, trafficShaper));
+        // many resources in one request, see DownloadBatch 
+        hs.createContext("/download-batch", new BatchHandler()).getFilters().addAll(Arrays.asList(aborter, recorder, trafficShaper));
+        hs.createContext("/server-status", this::status);
+    }
+
+    /**
+     * threads idle threads are kept, more are started as needed (no queue), so small responses do not wait behind throttled ones
+     */
+    private static ExecutorService handlers(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "http-handler-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        return executor;
     }
 
     private class DownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            RootRef ref = pinRoot(exchange);
+            if(ref == null)
+                return;
+
+            try {
+                handle(exchange, ref);
+            } finally {
+                ref.release();
+            }
+        }
+        private void handle(HttpExchange exchange, RootRef ref) throws IOException {
+            ServerRoot file = ref.root;
             URL url = new URL(exchange.getRequestURI().getQuery());
             final String query = url.getQuery(); 
 
-            FileUnit fileUnit = query != null ? file.getFileUnit(query.hashCode()) : file.getFileUnit(rootUri.resolve(new File(url.getPath()).getName()));
+            URI uri = rootUri.resolve(new File(url.getPath()).getName());
+            String key = query != null ? AccessStats.HASH+query.hashCode() : uri.getPath();
+            long version = ref.misses.version();
+            FileUnit fileUnit = null;
+            if(ref.misses.isMissing(key))
+                CacheEvent.record("negative", key, true);
+            else {
+                fileUnit = query != null ? file.getFileUnit(query.hashCode()) : file.getFileUnit(uri);
+                CacheEvent.record("root", key, fileUnit != null);
+            }
 
             if (fileUnit != null) {
-                try(OutputStream resposeBody = setSendHeader(exchange, fileUnit.getSize(), getMime(fileUnit.getName()))) {
-                    pipe(fileUnit.getInputStream(), resposeBody);
+                ref.stats.hit(key);
+                String mime = getMime(fileUnit.getName());
+                boolean css = CssRewriter.isCss(mime);
+                try(OutputStream resposeBody = css ? cssRewriter.wrap(setSendHeader(exchange, 0, mime), url) : setSendHeader(exchange, fileUnit.getSize(), mime)) {
+                    pipe(fileUnit.getInputStream(), resposeBody, fileUnit.getSize());
                     print(url, fileUnit.getName());
                     fileUnit.close();                        
                 }
             } else {
-                String name = query == null ? new File(url.getPath()).getName() : String.valueOf(query.hashCode());
+                ref.misses.missed(key, version);
+                String name = downloadName(url);
                 Path path = DOWNLOADS_DIR.resolve(name);
-                if(Files.notExists(path))
-                    downloadAction(name, url, exchange);
-                else
-                    sendFile(path, exchange, name, url);
+                boolean cached = Files.exists(path);
+                CacheEvent.record("downloads", name, cached);
+                if(!cached) {
+                    revalidator.forget(path);
+                    downloadAction(ref, name, url, exchange);
+                } else {
+                    ref.stats.hit(AccessStats.DOWNLOAD+name);
+                    // served as is, even if stale, updated in background 
+                    Downloaded d = revalidator.check(url, path);
+                    sendFile(path, exchange, d.getMime() != null ? d.getMime() : getMime(name), url, cssRewriter);
+                }
             }
         }
     }
 
+    private static String downloadName(URL url) {
+        String query = url.getQuery();
+        return query == null ? new File(url.getPath()).getName() : String.valueOf(query.hashCode());
+    }
+
+    private class BatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if(!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            RootRef ref = pinRoot(exchange);
+            if(ref == null)
+                return;
+
+            // released once last url of batch is settled 
+            DownloadBatch batch = new DownloadBatch(exchange, new DownloadBatch.Fetcher() {
+                @Override
+                public FileUnit cached(URL url) throws IOException {
+                    return Server.this.cached(ref, url);
+                }
+                @Override
+                public boolean fetch(URL url, Runnable onDone) {
+                    String name = downloadName(url);
+                    revalidator.forget(DOWNLOADS_DIR.resolve(name));
+                    ref.retain();
+                    if(downloads.offer(new DownloadTask(ref, url, name, null, isServerDownloadableResource(url), null).onDone(onDone)))
+                        return true;
+                    ref.release();
+                    return false;
+                }
+            }, batchInflight, ref::release);
+
+            List<String> manifest;
+            try {
+                manifest = DownloadBatch.manifest(exchange.getRequestBody());
+            } catch (IOException e) {
+                ref.release();
+                throw e;
+            }
+            batch.start(manifest, DownloadBatch.zip(exchange.getRequestURI().getQuery()));
+        }
+    }
+    /**
+     * resource of url in root, DOWNLOADS_DIR or earlier downloads (lookups of /download), null if it is not cached 
+     */
+    private FileUnit cached(RootRef ref, URL url) throws IOException {
+        String query = url.getQuery();
+        String name = downloadName(url);
+        String key = query != null ? AccessStats.HASH+query.hashCode() : rootUri.resolve(name).getPath();
+
+        if(!ref.misses.isMissing(key)) {
+            FileUnit unit = query != null ? ref.root.getFileUnit(query.hashCode()) : ref.root.getFileUnit(rootUri.resolve(name));
+            if(unit != null)
+                return unit;
+        }
+        Path path = DOWNLOADS_DIR.resolve(name);
+        if(Files.notExists(path)) {
+            Downloaded d = DownloadTask.getDownloaded(url);
+            path = d == null ? null : d.getDownloadPath();
+        }
+        return path == null || Files.notExists(path) ? null : new FileUnit(name, Files.size(path), Files.newInputStream(path));
+    }
+
     private class SimpleHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            RootRef ref = pinRoot(exchange);
+            if(ref == null)
+                return;
+
+            try {
+                handle(exchange, ref);
+            } finally {
+                ref.release();
+            }
+        }
+        private void handle(HttpExchange exchange, RootRef ref) throws IOException {
+            ServerRoot file = ref.root;
             URI uri = exchange.getRequestURI();
 
+            // known to be missing, no lookups in root 
+            String key = uri.getPath();
+            long version = ref.misses.version();
+            if(ref.misses.isMissing(key)) {
+                CacheEvent.record("negative", key, true);
+                print(uri, null);
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
             if (uri.equals(rootUri))
                 uri = rootUri.resolve("index.html");
 
@@ -160,52 +366,142 @@ public class Server extends ThreadPoolExecutor implements AutoCloseable {
                         resposeBody.write(bytes);    
                     }
                 } else {
+                    ref.misses.missed(key, version);
                     print(uri, null);
                     exchange.sendResponseHeaders(404, -1);
                 }
                 return;
             }
+            ref.stats.hit(uri.getPath());
             String name = fileUnit.getName();
+            // pack roots come with precomputed mime, validators and gzip variant
+            String mime = fileUnit.getMime() != null ? fileUnit.getMime() : getMime(name);
             print(uri,name);
             try(OutputStream resposeBody = exchange.getResponseBody()) {
-                exchange.getResponseHeaders().add("Content-Type", getMime(name));
+                exchange.getResponseHeaders().add("Content-Type", mime);
 
-                // replace link which is to be cached 
-                if (uri.equals(rootUri.resolve("index.html")) || uri.toString().chars().filter(c -> c == '/').count() >= 2) {
+                // pack bodies are rewritten by PackCompiler, they are sent with validators and gzip variant
+                boolean pack = fileUnit.getEtag() != null;
+
+                // url(...) and @import of stylesheet, rewritten while streaming 
+                if (!pack && CssRewriter.isCss(mime)) {
+                    exchange.sendResponseHeaders(200, 0);
+                    try(OutputStream os = cssRewriter.wrap(resposeBody, null)) {
+                        pipe(fileUnit.getInputStream(), os, fileUnit.getSize());
+                    }
+                } else if (!pack && (fileUnit.getMime() == null || isText(mime)) && isLinking(uri.toString().substring(1))) {
                     ByteArrayOutputStream bos = new ByteArrayOutputStream((int)fileUnit.getSize());
                     InputStream is = fileUnit.getInputStream();
                     int b = 0;
                     while((b = is.read()) != -1) bos.write(b);
 
-                    Pattern pattern = Pattern.compile("(\"|')(https?.+)\\1");
-                    Matcher m = pattern.matcher(new String(bos.toByteArray()));
-
-                    StringBuffer sb = new StringBuffer();
-
-                    while(m.find()) {
-                        if(downloadResourcesTester.test(m.group(2)))
-                            m.appendReplacement(sb, m.group(1)+"/download?"+m.group(2)+m.group(1));
-                    } 
-                    m.appendTail(sb);
-
-                    byte[] bytes = sb.toString().getBytes();
+                    byte[] bytes = rewriteLinks(downloadResourcesTester, bos.toByteArray());
                     exchange.sendResponseHeaders(200, bytes.length);
                     resposeBody.write(bytes);
+                } else if(fileUnit.getEtag() != null && fileUnit.getEtag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.getResponseHeaders().add("ETag", fileUnit.getEtag());
+                    exchange.sendResponseHeaders(304, -1);
                 } else {
-                    exchange.sendResponseHeaders(200, fileUnit.getSize());
-                    pipe(fileUnit.getInputStream(), resposeBody);
+                    FileUnit body = fileUnit;
+                    if(fileUnit.getEtag() != null) {
+                        exchange.getResponseHeaders().add("ETag", fileUnit.getEtag());
+                        exchange.getResponseHeaders().add("Last-Modified", fileUnit.getLastModified());
+                    }
+                    if(fileUnit.getGzipped() != null) {
+                        exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+                        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                        if(accept != null && accept.contains("gzip")) {
+                            body = fileUnit.getGzipped();
+                            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                        }
+                    }
+                    exchange.sendResponseHeaders(200, body.getSize());
+                    pipe(body.getInputStream(), resposeBody, body.getSize());
                 }
                 fileUnit.close();
             }
         }
     }
 
+    /**
+     * path (relative to root) of a text resource whose links are rewritten to /download, index.html or one in a folder
+     */
+    private static boolean isLinking(String name) {
+        return name.equals("index.html") || name.indexOf('/') >= 0;
+    }
+    private static byte[] rewriteLinks(Predicate<String> tester, byte[] body) {
+        Pattern pattern = Pattern.compile("(\"|')(https?.+)\\1");
+        Matcher m = pattern.matcher(new String(body));
+
+        StringBuffer sb = new StringBuffer();
+
+        while(m.find()) {
+            if(tester.test(m.group(2)))
+                m.appendReplacement(sb, m.group(1)+"/download?"+m.group(2)+m.group(1));
+        } 
+        m.appendTail(sb);
+
+        return sb.toString().getBytes();
+    }
+    /**
+     * rewrites done per request for directory and zip roots, for {@link PackCompiler} to do them once at compile time
+     */
+    public static PackCompiler.Rewriter packRewriter() {
+        ResourceBundle rb = ResourceBundle.getBundle("1509617391333-server_config");
+        Predicate<String> tester = new Tester(rb.getString("download.resources"));
+        CssRewriter css = new CssRewriter(tester);
+
+        return (name, mime, body) -> {
+            if(CssRewriter.isCss(mime)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length);
+                try(OutputStream os = css.wrap(bos, null)) {
+                    os.write(body);
+                }
+                return bos.toByteArray();
+            }
+            return isText(mime) && isLinking(name) ? rewriteLinks(tester, body) : null;
+        };
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        byte[] bytes = downloads.status().getBytes();
+        try(OutputStream resposeBody = setSendHeader(exchange, bytes.length, "text/plain")) {
+            resposeBody.write(bytes);
+        }
+    }
+    public int getQueuedDownloads() {
+        return downloads.getQueued();
+    }
+    public int getActiveDownloads() {
+        return downloads.getActive();
+    }
+    public long getShedDownloads() {
+        return downloads.getShed();
+    }
+    public long getAverageDownloadWaitMillis() {
+        return downloads.getAverageWaitMillis();
+    }
+
+    private String rootType() {
+        RootRef ref = current.get();
+        return ref == null ? null : ref.root.getClass().getSimpleName();
+    }
+    /**
+     * bandwidth limits, can be changed while server is running
+     */
+    public TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
     public boolean isServerDownloadableResource(URL url){
         return downloadAsServerResourcesPredicate.test(url.toString());
     }
-    static void sendFile(Path path, HttpExchange exchange, String name, URL url) {
-        try(OutputStream resposeBody = setSendHeader(exchange, Files.size(path), getMime(name))) {
-            Files.copy(path, resposeBody);
+    /**
+     * @param css if not null, stylesheets are sent rewritten (chunked), with url as base 
+     */
+    static void sendFile(Path path, HttpExchange exchange, String mime, URL url, CssRewriter css) {
+        boolean rewrite = css != null && CssRewriter.isCss(mime);
+        try(OutputStream resposeBody = rewrite ? css.wrap(setSendHeader(exchange, 0, mime), url) : setSendHeader(exchange, Files.size(path), mime)) {
+            pipe(path, resposeBody);
             print(url , path.subpath(path.getNameCount() - 2, path.getNameCount()));
         } catch (Exception e) {
             System.out.println("failed to send file: ");
@@ -227,7 +523,7 @@ public class Server extends ThreadPoolExecutor implements AutoCloseable {
         sb.append("   </ul>\r\n</body>\r\n\r\n</html>\r\n");
         return sb.toString().getBytes();
     }
-
+
     public void start(Path root, boolean openInBrowser) throws IOException {
         createNewServerRoot(root);
         hs.start();
@@ -242,22 +538,55 @@ public class Server extends ThreadPoolExecutor implements AutoCloseable {
             Runtime.getRuntime().exec("explorer http://localhost:" + runningAt.getPort());
     }
 
+    /**
+     * pins current root for the duration of a request, caller must {@link RootRef#release()} it.
+     * sends 503 and returns null if no root is set
+     */
+    private RootRef pinRoot(HttpExchange exchange) throws IOException {
+        while(true) {
+            RootRef ref = current.get();
+            if(ref == null) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return null;
+            }
+            if(ref.retain())
+                return ref;
+        }
+    }
+
     private void createNewServerRoot(Path root) throws IOException {
         if (Files.notExists(root))
             throw new FileNotFoundException(root.toString());
 
-        closeRoot();
-        file = Files.isRegularFile(root) ? new ZipRoot(root) : new DirectoryRoot(root);
-        canceller = new AtomicBoolean(false);
+        ServerRoot file;
+        if(!Files.isRegularFile(root))
+            file = new DirectoryRoot(root);
+        else if(root.getFileName().toString().endsWith(".pack"))
+            file = new PackRoot(root);
+        else 
+            file = MAPPED_ZIP ? new MappedZipRoot(root) : new ZipRoot(root);
+        RootRef ref = new RootRef(file);
+        file.onAdded(ref.misses::added);
+        RootRef old = current.getAndSet(ref);
+        Warmer.start(ref, revalidator, warmTop, warmIoBudget, warmMemoryBudget, statsSaveInterval);
+
+        // closed in background, once in-flight requests on it are completed 
+        if(old != null)
+            old.retire();
     }
     public void closeRoot() throws IOException {
-        if(file != null) {
-            canceller.set(true);
-            file.close();
-            getQueue().stream().filter(r -> r instanceof Future).map(Future.class::cast).forEach(f -> f.cancel(true));
-            getQueue().clear();
-            file = null;
-            canceller = null;
+        RootRef old = current.getAndSet(null);
+        if(old == null)
+            return;
+
+        old.canceller.set(true);
+        old.retire();
+        try {
+            if(!old.awaitClosed(READ_TIMEOUT))
+                System.out.println(Utils.red("root still in use, not closed: ")+old.root.getRoot());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -267,17 +596,51 @@ public class Server extends ThreadPoolExecutor implements AutoCloseable {
         if (openInBrowser)
             Runtime.getRuntime().exec("explorer http://localhost:"+runningAt.getPort());
 
-        System.out.println(green("\nroot changed to:  "+file.getRoot()));
+        System.out.println(green("\nroot changed to:  "+path));
     }
 
-    protected void downloadAction(final String name, final URL url, final HttpExchange exchange) {
+    protected void downloadAction(final RootRef ref, final String name, final URL url, final HttpExchange exchange) {
         Downloaded dd = DownloadTask.getDownloaded(url);
-        if(dd != null && Files.exists(dd.getDownloadPath())) {
-            sendFile(dd.getDownloadPath(), exchange, name, url);
+        boolean cached = dd != null && Files.exists(dd.getDownloadPath());
+        CacheEvent.record("downloaded", url, cached);
+        if(cached) {
+            revalidator.check(url, dd, d -> DownloadTask.updateDownloaded(url, d));
+            sendFile(dd.getDownloadPath(), exchange, dd.getMime() != null ? dd.getMime() : getMime(name), url, cssRewriter);
             return;
         }
         
-        submit(new DownloadTask(canceller, url, name, exchange, isServerDownloadableResource(url)));
+        // pinned until afterExecute() has persisted the result
+        ref.retain();
+        RelayedResponse response = new RelayedResponse(exchange, url, cssRewriter);
+        if(!downloads.offer(new DownloadTask(ref, url, name, response, isServerDownloadableResource(url), cssRewriter))) {
+            ref.release();
+            System.out.println(Utils.red("download queue full: ")+url);
+            unavailable(url, exchange);
+            return;
+        }
+        // sent by this (handler) thread as it is downloaded, so a slow client does not hold a download slot
+        try {
+            if(!response.send())
+                unavailable(url, exchange);
+        } catch (IOException e) {
+            Utils.error(url, "failed to send download", e);
+            exchange.close();
+        }
+    }
+    /**
+     * 503 for a download which was not accepted, client may retry after download.retry.after seconds
+     */
+    private void unavailable(URL url, HttpExchange exchange) {
+        if(exchange == null)
+            return;
+        try {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+            exchange.sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            Utils.error(url, "failed to send 503", e);
+        } finally {
+            exchange.close();
+        }
     }
 
     @Override
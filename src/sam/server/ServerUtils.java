@@ -26,7 +26,6 @@ public final class ServerUtils {
     private static final  Map<String, String> fileExtMimeMap;
     private static final Map<String, String> mimeFileExtMap;
     private static final Set<Path> TEMP_FILES = new HashSet<>();
-    private static final int BUFFER_SIZE = Optional.ofNullable(System.getProperty("sam.buffer.size")).map(Integer::parseInt).orElse(8*1024);
     public static final Path DOWNLOADS_DIR;
     public static final Path LOOK_DOWNLOADS_DIR;
     public static final int READ_TIMEOUT;
@@ -98,21 +97,32 @@ public final class ServerUtils {
         return mime == null ? "text/plain" : mime;
     }
 
+    public static boolean isText(String mime) {
+        return mime.startsWith("text/") || mime.contains("javascript") || mime.contains("json") || mime.contains("xml");
+    }
+
     static OutputStream setSendHeader(HttpExchange exchange, long size, String mime) throws IOException {
         exchange.getResponseHeaders().add("Content-Type", mime == null ? "text/html" : mime);
         exchange.sendResponseHeaders(200, size);
         return exchange.getResponseBody();
     }
 
-    public static byte[] createBuffer() {
-        return new byte[BUFFER_SIZE];
-    }
-    
     public static void pipe(InputStream is, OutputStream resposeBody) throws IOException {
-        byte[] bytes = createBuffer();
-        int n = 0;
-        while ((n = is.read(bytes)) > 0)
-            resposeBody.write(bytes, 0, n);
-        
+        pipe(is, resposeBody, -1);
+    }
+    public static void pipe(InputStream is, OutputStream resposeBody, long size) throws IOException {
+        byte[] bytes = BufferPool.acquire(size);
+        try {
+            int n = 0;
+            while ((n = is.read(bytes)) > 0)
+                resposeBody.write(bytes, 0, n);
+        } finally {
+            BufferPool.release(bytes);
+        }
+    }
+    public static void pipe(Path path, OutputStream resposeBody) throws IOException {
+        try(InputStream is = Files.newInputStream(path)) {
+            pipe(is, resposeBody, Files.size(path));
+        }
     }
 }
@@ -0,0 +1,251 @@
+package sam.server;
+
+import static sam.server.ServerUtils.DOWNLOADS_DIR;
+import static sam.server.ServerUtils.READ_TIMEOUT;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * coordinates downloads into DOWNLOADS_DIR between server instances (processes) sharing it, and between threads of this one.
+ * <pre>
+ * .locks/&lt;name&gt;.lock   FileLock held by the one fetching &lt;name&gt;
+ * .locks/&lt;name&gt;.mime   mime of &lt;name&gt;, written by fetcher before .part, deleted with lease
+ * &lt;name&gt;.part          written by fetcher, atomically moved to &lt;name&gt; once complete
+ * </pre>
+ * others tail the .part file till it is moved in place, so they do not wait for the whole download.
+ * FileLock is held per process, threads of same process are coordinated with an in-process map.
+ */
+final class SharedDownloads {
+    private static final Path LOCKS = DOWNLOADS_DIR.resolve(".locks");
+    private static final ConcurrentMap<String, Lease> inflight = new ConcurrentHashMap<>();
+    // tailing checks fetcher is alive (which opens its lock file) at most this often
+    private static final long LIVENESS_INTERVAL = 250;
+
+    private SharedDownloads() {}
+
+    static Path part(String name) {
+        return DOWNLOADS_DIR.resolve(name+".part");
+    }
+
+    /**
+     * exclusive right to fetch name into DOWNLOADS_DIR
+     */
+    static final class Lease implements Closeable {
+        private final String name;
+        private FileChannel channel;
+        private FileLock lock;
+        private boolean committed;
+
+        private Lease(String name) {
+            this.name = name;
+        }
+        Path part() {
+            return SharedDownloads.part(name);
+        }
+        /**
+         * records mime of file being fetched for others tailing it, before its .part is created
+         */
+        void started(String mime) throws IOException {
+            Path temp = Files.createTempFile(LOCKS, name, ".tmp");
+            try {
+                Files.write(temp, (mime == null ? "" : mime).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, mimeFile(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        /**
+         * moves complete .part file in place
+         * @return moved file
+         */
+        Path commit() throws IOException {
+            Path target = DOWNLOADS_DIR.resolve(name);
+            try {
+                Files.move(part(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+            return target;
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                if(!committed)
+                    Files.deleteIfExists(part());
+                if(lock != null)
+                    Files.deleteIfExists(mimeFile(name));
+            } finally {
+                inflight.remove(name, this);
+                // releases lock too
+                Utils.closeThese(channel);
+            }
+        }
+    }
+
+    /**
+     * @return null if name is being fetched by another thread or process
+     */
+    static Lease acquire(String name) throws IOException {
+        Lease lease = new Lease(name);
+        if(inflight.putIfAbsent(name, lease) != null)
+            return null;
+
+        try {
+            Files.createDirectories(LOCKS);
+            lease.channel = FileChannel.open(LOCKS.resolve(name+".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lease.lock = lease.channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // held in this process, outside of inflight map
+            }
+        } catch (IOException e) {
+            lease.close();
+            throw e;
+        }
+        if(lease.lock == null) {
+            lease.committed = true; // .part belongs to lock holder
+            lease.close();
+            return null;
+        }
+        // left by a fetcher which did not complete, not to be tailed by others
+        Files.deleteIfExists(lease.part());
+        return lease;
+    }
+    static boolean isFetching(String name) throws IOException {
+        if(inflight.containsKey(name))
+            return true;
+        Lease lease = acquire(name);
+        if(lease == null)
+            return true;
+        lease.committed = true;
+        lease.close();
+        return false;
+    }
+
+    /**
+     * copies .part file of name to out as it grows, till it is moved in place.
+     * if fetcher fails, response is aborted (not completed) with {@link OutputOpener#abort()}
+     * @param out opened once fetcher has started (.part file exists, and mime is known)
+     * @return false if no one is fetching name and it is not in DOWNLOADS_DIR (nothing is written to out in this case)
+     */
+    static boolean tail(String name, OutputOpener out) throws IOException {
+        Path part = part(name);
+        Path target = DOWNLOADS_DIR.resolve(name);
+        long deadline = System.currentTimeMillis() + READ_TIMEOUT;
+        long check = 0;
+
+        FileChannel channel = null;
+        String mime = null;
+        try {
+            while(true) {
+                if(Files.exists(target)) {
+                    out.sendFile(target);
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+                if(now >= check) {
+                    if(!isFetching(name))
+                        return false;
+                    check = now + LIVENESS_INTERVAL;
+                }
+                if(mime == null)
+                    mime = mime(name);
+                if(mime != null) {
+                    try {
+                        channel = FileChannel.open(part, StandardOpenOption.READ);
+                        break;
+                    } catch (NoSuchFileException e) {}
+                }
+                if(now > deadline)
+                    throw new IOException("timeout waiting for: "+name);
+                sleep();
+            }
+
+            OutputStream os = out.open(mime);
+            boolean complete = false;
+            byte[] bytes = BufferPool.acquire(-1);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while(true) {
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    if(n > 0) {
+                        os.write(bytes, 0, n);
+                        deadline = System.currentTimeMillis() + READ_TIMEOUT;
+                        continue;
+                    }
+                    // channel still points to the file after it is moved in place
+                    if(Files.exists(target) && channel.position() >= channel.size()) {
+                        complete = true;
+                        return true;
+                    }
+                    long now = System.currentTimeMillis();
+                    if(now >= check) {
+                        if(!isFetching(name) && Files.notExists(target))
+                            throw new IOException("fetch failed in another instance: "+name);
+                        check = now + LIVENESS_INTERVAL;
+                    }
+                    if(now > deadline)
+                        throw new IOException("timeout waiting for: "+name);
+                    sleep();
+                }
+            } finally {
+                BufferPool.release(bytes);
+                if(!complete)
+                    out.abort();
+                os.close();
+            }
+        } finally {
+            if(channel != null)
+                channel.close();
+        }
+    }
+    interface OutputOpener {
+        OutputStream open(String mime) throws IOException;
+        void sendFile(Path file) throws IOException;
+        /**
+         * marks response opened with {@link #open(String)} as not complete, before its stream is closed
+         */
+        void abort();
+    }
+    private static void sleep() throws IOException {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static Path mimeFile(String name) {
+        return LOCKS.resolve(name+".mime");
+    }
+    /**
+     * @return mime of name as recorded by its fetcher, null if not recorded (yet)
+     */
+    private static String mime(String name) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(mimeFile(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return bytes.length == 0 ? ServerUtils.getMime(name) : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
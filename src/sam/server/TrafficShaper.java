@@ -0,0 +1,170 @@
+package sam.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * token-bucket rate limit on response bodies, one bucket shared by all clients and one per client address.
+ * waits by sleeping in writer, so handlers must run on an executor (see {@link Server}), not on dispatcher thread.
+ * <br>
+ * first {@link #getFreeBytes()} bytes of every response are never delayed (but still consume tokens),
+ * so small responses complete promptly while large transfers wait their turn chunk by chunk.
+ * all limits are bytes/sec, &lt;= 0 means unlimited, and can be changed while server is running.
+ */
+public final class TrafficShaper extends Filter {
+    private static final int CHUNK = 16*1024;
+    private static final int MAX_CLIENTS = 1024;
+    private static final long CLIENT_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile long globalRate;
+    private volatile long clientRate;
+    private volatile long freeBytes;
+
+    private final TokenBucket global = new TokenBucket();
+    private final ConcurrentMap<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+
+    public TrafficShaper(long globalRate, long clientRate, long freeBytes) {
+        this.globalRate = globalRate;
+        this.clientRate = clientRate;
+        this.freeBytes = freeBytes;
+    }
+
+    public long getGlobalRate() { return globalRate; }
+    public long getClientRate() { return clientRate; }
+    public long getFreeBytes() { return freeBytes; }
+
+    public void setGlobalRate(long globalRate) { this.globalRate = globalRate; }
+    public void setClientRate(long clientRate) { this.clientRate = clientRate; }
+    public void setFreeBytes(long freeBytes) { this.freeBytes = freeBytes; }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        InetAddress client = exchange.getRemoteAddress() == null ? null : exchange.getRemoteAddress().getAddress();
+        exchange.setStreams(null, new ShapedOutputStream(exchange.getResponseBody(), client));
+        chain.doFilter(exchange);
+    }
+    @Override
+    public String description() {
+        return "bandwidth shaping";
+    }
+
+    private TokenBucket bucket(InetAddress client) {
+        if(client == null)
+            return null;
+
+        if(clients.size() > MAX_CLIENTS) {
+            long now = System.nanoTime();
+            clients.values().removeIf(b -> now - b.lastUsed > CLIENT_IDLE_NANOS);
+        }
+        return clients.computeIfAbsent(client, c -> new TokenBucket());
+    }
+
+    private final class ShapedOutputStream extends FilterOutputStream {
+        private final InetAddress client;
+        private TokenBucket bucket;
+        private long written;
+        // single byte writes, charged once per chunk 
+        private int uncharged;
+
+        ShapedOutputStream(OutputStream out, InetAddress client) {
+            super(out);
+            this.client = client;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if(++uncharged >= CHUNK)
+                charge();
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            charge();
+            while(len > 0) {
+                int n = Math.min(len, CHUNK);
+                acquire(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+        @Override
+        public void flush() throws IOException {
+            charge();
+            super.flush();
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                charge();
+            } finally {
+                super.close();
+            }
+        }
+        private void charge() throws IOException {
+            if(uncharged == 0)
+                return;
+            int n = uncharged;
+            uncharged = 0;
+            acquire(n);
+        }
+        private void acquire(int n) throws IOException {
+            long g = globalRate, c = clientRate;
+            if(g <= 0 && c <= 0)
+                return;
+
+            boolean wait = written >= freeBytes;
+            written += n;
+
+            if(c > 0 && bucket == null)
+                bucket = bucket(client);
+
+            long nanos = global.take(n, g, wait);
+            if(bucket != null)
+                nanos = Math.max(nanos, bucket.take(n, c, wait));
+
+            if(nanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(nanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long last = System.nanoTime();
+        volatile long lastUsed = last;
+
+        /**
+         * takes n tokens, bucket may go into debt (at most one second worth of tokens)
+         * @return nanos caller should wait before sending, 0 if !wait
+         */
+        synchronized long take(int n, long rate, boolean wait) {
+            long now = System.nanoTime();
+            lastUsed = now;
+
+            if(rate <= 0) {
+                tokens = 0;
+                last = now;
+                return 0;
+            }
+            tokens = Math.min(rate, tokens + (now - last) * (rate / 1e9));
+            tokens = Math.max(-rate, tokens - n);
+            last = now;
+
+            return !wait || tokens >= 0 ? 0 : (long)(-tokens * 1e9 / rate);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package sam.server;
+
+import static sam.server.ServerUtils.DOWNLOADS_DIR;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import sam.server.root.FileUnit;
+
+/**
+ * reads most accessed resources of a new root (see {@link AccessStats}) in background,
+ * so first requests after a start/root change do not pay for cold page cache, zip lookups and inflation.
+ * <br>
+ * stops after reading ioBudget bytes, small entries are offered to root to be kept in memory
+ * (see {@link sam.server.root.ServerRoot#keep(URI, byte[])}) till memoryBudget is used.
+ * <br>
+ * afterwards, same thread saves {@link AccessStats} every saveInterval seconds while root is in use,
+ * so a crash does not lose counts of the whole session.
+ */
+final class Warmer implements Runnable {
+    private static final int MAX_KEEP = 1024*1024;
+
+    private final RootRef ref;
+    private final Revalidator revalidator;
+    private final int top;
+    private final long ioBudget;
+    private final long memoryBudget;
+    private final long saveInterval;
+
+    private long read, kept;
+
+    private Warmer(RootRef ref, Revalidator revalidator, int top, long ioBudget, long memoryBudget, long saveInterval) {
+        this.ref = ref;
+        this.revalidator = revalidator;
+        this.top = top;
+        this.ioBudget = ioBudget;
+        this.memoryBudget = memoryBudget;
+        this.saveInterval = saveInterval;
+    }
+    static void start(RootRef ref, Revalidator revalidator, int top, long ioBudget, long memoryBudget, long saveInterval) {
+        if((top <= 0 || ioBudget <= 0) && saveInterval <= 0)
+            return;
+
+        Thread t = new Thread(new Warmer(ref, revalidator, top, ioBudget, memoryBudget, saveInterval), "warm-up: "+ref.root.getRoot().getFileName());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        if(top > 0 && ioBudget > 0)
+            warmUp();
+        if(saveInterval > 0)
+            saveStats();
+    }
+    private void saveStats() {
+        while(true) {
+            try {
+                Thread.sleep(saveInterval * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // root released, saved on close 
+            if(!ref.retain())
+                return;
+            try {
+                ref.stats.save();
+            } finally {
+                ref.release();
+            }
+        }
+    }
+    private void warmUp() {
+        if(!ref.retain())
+            return;
+
+        long time = System.currentTimeMillis();
+        int count = 0;
+        try {
+            List<String> keys = ref.stats.top(top);
+            for (String key : keys) {
+                if(ref.canceller.get() || read >= ioBudget)
+                    break;
+                try {
+                    if(warm(key))
+                        count++;
+                } catch (IOException | URISyntaxException | NumberFormatException e) {
+                    System.out.println(Utils.red("warm-up failed: ")+key+"  "+e);
+                }
+            }
+        } finally {
+            ref.release();
+        }
+        if(count != 0)
+            System.out.println(Utils.yellow("warmed up: ")+count+" resources, "+Utils.bytesToString(read)+" read, "+Utils.bytesToString(kept)+" kept  ("+(System.currentTimeMillis() - time)+"ms)");
+    }
+    private boolean warm(String key) throws IOException, URISyntaxException {
+        if(key.startsWith(AccessStats.DOWNLOAD)) {
+            Path p = DOWNLOADS_DIR.resolve(key.substring(AccessStats.DOWNLOAD.length()));
+            if(Files.notExists(p))
+                return false;
+
+            revalidator.preload(p);
+            try(InputStream is = Files.newInputStream(p)) {
+                drain(is, NULL);
+            }
+            return true;
+        }
+        if(key.startsWith(AccessStats.HASH)) {
+            try(FileUnit u = ref.root.getFileUnit(Long.parseLong(key.substring(AccessStats.HASH.length())))) {
+                if(u == null)
+                    return false;
+                drain(u.getInputStream(), NULL);
+            }
+            return true;
+        }
+
+        URI uri = new URI(null, null, key, null);
+        try(FileUnit u = ref.root.getFileUnit(uri)) {
+            if(u == null)
+                return false;
+
+            if(u.getSize() <= Math.min(MAX_KEEP, memoryBudget - kept)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream((int) u.getSize());
+                drain(u.getInputStream(), bos);
+                if(ref.root.keep(uri, bos.toByteArray()))
+                    kept += bos.size();
+            } else {
+                drain(u.getInputStream(), NULL);
+            }
+        }
+        return true;
+    }
+    private void drain(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = BufferPool.acquire(-1);
+        try {
+            int n;
+            while(read < ioBudget && (n = is.read(buffer)) > 0) {
+                os.write(buffer, 0, n);
+                read += n;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+}
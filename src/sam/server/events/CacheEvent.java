@@ -0,0 +1,47 @@
+package sam.server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * a lookup in one of server caches, disabled by default (one per lookup).
+ * <pre>
+ * root        download persisted in root
+ * downloads   file in DOWNLOADS_DIR
+ * downloaded  in-memory map of downloads
+ * negative    known missing resource (hit means lookup was skipped)
+ * </pre>
+ */
+@Name("sam.server.Cache")
+@Label("Cache Lookup")
+@Category({"Server", "Cache"})
+@Description("A hit or miss in a server cache")
+@Enabled(false)
+@Threshold("0 ms")
+@StackTrace(false)
+public final class CacheEvent extends Event {
+    @Label("Cache")
+    public String cache;
+
+    @Label("Key")
+    public String key;
+
+    @Label("Hit")
+    public boolean hit;
+
+    public static void record(String cache, Object key, boolean hit) {
+        CacheEvent e = new CacheEvent();
+        if(!e.isEnabled())
+            return;
+        e.cache = cache;
+        e.key = String.valueOf(key);
+        e.hit = hit;
+        e.commit();
+    }
+}
@@ -0,0 +1,40 @@
+package sam.server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * a phase of a download task.
+ * <pre>
+ * connect      till upstream response headers
+ * first-byte   till first byte of body
+ * complete     whole task, or cancelled/failed/shared (served by another fetcher) if it ended so
+ * </pre>
+ */
+@Name("sam.server.Download")
+@Label("Download Phase")
+@Category({"Server", "Download"})
+@Description("A phase of an upstream download")
+@Threshold("10 ms")
+@StackTrace(false)
+public final class DownloadEvent extends Event {
+    @Label("URL")
+    public String url;
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    public DownloadEvent(String phase) {
+        this.phase = phase;
+    }
+}
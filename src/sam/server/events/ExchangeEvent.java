@@ -0,0 +1,37 @@
+package sam.server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * an http exchange, from request till response body is closed (downloads complete on executor threads)
+ */
+@Name("sam.server.Exchange")
+@Label("Exchange")
+@Category({"Server", "HTTP"})
+@Description("An HTTP exchange, till its response is sent")
+@Threshold("20 ms")
+@StackTrace(false)
+public final class ExchangeEvent extends Event {
+    @Label("URI")
+    public String uri;
+
+    @Label("Context")
+    public String context;
+
+    @Label("Root Type")
+    public String root;
+
+    @Label("Status")
+    public int status;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,31 @@
+package sam.server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * a downloaded file added to root, after its download task
+ */
+@Name("sam.server.Persist")
+@Label("Persist Download")
+@Category({"Server", "Download"})
+@Description("A downloaded resource added to the server root")
+@Threshold("10 ms")
+@StackTrace(false)
+public final class PersistEvent extends Event {
+    @Label("Name")
+    public String name;
+
+    @Label("Root Type")
+    public String root;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,28 @@
+package sam.server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("sam.server.Repack")
+@Label("Repack")
+@Category({"Server", "Root"})
+@Description("A zip root rewritten with downloaded resources")
+@Threshold("0 ms")
+@StackTrace(false)
+public final class RepackEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Added")
+    public int added;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
@@ -1,33 +1,205 @@
 package sam.server.root;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import sam.server.Utils;
+
 public class DirectoryRoot implements ServerRoot {
     public final Path root;
+    private volatile RootIndex index;
+    private volatile WatchService watcher;
+    private volatile boolean closed;
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
 
     public DirectoryRoot(Path root) {
         this.root = root;
+
+        if(RootIndex.ENABLED) {
+            index = RootIndex.load(root);
+            if(index == null)
+                indexInBackground();
+        }
     }
+    /**
+     * only top level files are indexed, index serves {@link #getFileUnit(long)} only,
+     * and hash named downloads are added to top level (lookups by path go to file system as they are cheap)
+     */
+    private void indexInBackground() {
+        Thread t = new Thread(() -> {
+            try {
+                long[] stamp = RootIndex.stamp(root);
+                List<ZipDirectory.Entry> list = new ArrayList<>();
+                try(DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+                    for (Path p : ds) {
+                        if(Files.isRegularFile(p))
+                            list.add(new ZipDirectory.Entry(p.getFileName().toString(), ZipDirectory.STORED, 0, 0, Files.size(p), Files.size(p), 0, 0));
+                    }
+                }
+                index = new RootIndex(list);
+                RootIndex.saveInBackground(root, stamp, list);
+            } catch (IOException e) {
+                System.out.println(Utils.red("failed to index: ")+root+"  "+e);
+            }
+        }, "root-index");
+        t.setDaemon(true);
+        t.start();
+    }
+    /**
+     * only root folder is watched upfront (watching a large tree is slow and may exhaust watch limit),
+     * other folders are watched as they are looked up, see {@link #watchParent(Path)}.
+     */
     @Override
-    public void close() throws IOException {}
+    public void onAdded(Consumer<String> listener) {
+        try {
+            WatchService ws = root.getFileSystem().newWatchService();
+            watcher = ws;
+            if(closed) {
+                ws.close();
+                return;
+            }
+            watchDir(root);
+        } catch (IOException e) {
+            System.out.println(Utils.red("failed to watch: ")+root+"  "+e);
+            return;
+        }
+        Thread t = new Thread(() -> watch(listener), "root-watch: "+root.getFileName());
+        t.setDaemon(true);
+        t.start();
+    }
+    private void watch(Consumer<String> listener) {
+        try(WatchService ws = watcher) {
+            while(true) {
+                WatchKey key = ws.take();
+                Path dir = dirs.get(key);
+
+                for (WatchEvent<?> e : key.pollEvents()) {
+                    if(e.kind() == OVERFLOW || dir == null) {
+                        listener.accept(null);
+                        continue;
+                    }
+                    Path p = dir.resolve((Path)e.context());
+                    // a new folder may already have files in it
+                    if(Files.isDirectory(p))
+                        register(p, listener);
+                    else
+                        listener.accept(name(p));
+                }
+                if(!key.reset()) {
+                    dirs.remove(key);
+                    if(dir != null)
+                        watched.remove(dir);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // root closed
+        } catch (IOException e) {
+            System.out.println(Utils.red("failed to watch: ")+root+"  "+e);
+        }
+    }
+    private String name(Path p) {
+        return root.relativize(p).toString().replace('\\', '/');
+    }
+    /**
+     * watches nearest existing folder of p, called before p is looked up,
+     * so a miss of p is not recorded after p was added unnoticed.
+     */
+    private void watchParent(Path p) {
+        if(watcher == null)
+            return;
+
+        Path dir = p.getParent();
+        if(dir == null || watched.contains(dir))
+            return;
+        while(dir != null && dir.startsWith(root) && !Files.isDirectory(dir))
+            dir = dir.getParent();
+        if(dir != null && dir.startsWith(root))
+            watchDir(dir);
+    }
+    private void watchDir(Path dir) {
+        WatchService ws = watcher;
+        if(ws == null || !watched.add(dir))
+            return;
+        try {
+            dirs.put(dir.register(ws, ENTRY_CREATE), dir);
+        } catch (IOException | ClosedWatchServiceException e) {
+            watched.remove(dir);
+        }
+    }
+    /**
+     * a new folder, watched with its sub folders (they are new too), its files are reported as added
+     */
+    private void register(Path dir, Consumer<String> listener) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                watchDir(d);
+                listener.accept(name(d));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                listener.accept(name(file));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        WatchService ws = watcher;
+        if(ws != null)
+            ws.close();
+    }
     Path getPath(URI uri) {
         return root.resolve(toPath(uri));           
     }
     @Override
     public FileUnit getFileUnit(URI uri) throws IOException {
         Path p = getPath(uri);
+        watchParent(p);
         return Files.isRegularFile(p) ? new FileUnit(uri.toString().substring(1), Files.size(p), Files.newInputStream(p, StandardOpenOption.READ)) : null;
     }
     @Override
     public FileUnit getFileUnit(long hashcode) throws IOException {
+        RootIndex index = this.index;
+        ZipDirectory.Entry e = index == null ? null : index.get(hashcode);
+        if(e != null) {
+            Path p = root.resolve(e.name);
+            if(Files.isRegularFile(p))
+                return new FileUnit(e.name, Files.size(p), Files.newInputStream(p, StandardOpenOption.READ));
+        }
+
+        // not indexed (or index is older than the file)
         String str = String.valueOf(hashcode);
         Optional<Path> path = 
                 Stream.of(root.toFile().list())
@@ -48,8 +220,13 @@ public class DirectoryRoot implements ServerRoot {
         return root;
     }
     @Override
+    public void addFile(Path file, String name) throws IOException {
+        Files.copy(file, root.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+    }
+    @Override
     public List<String> walkDirectory(URI uri) {
         Path p = getPath(uri);
+        watchParent(p);
 
         if(!Files.isDirectory(p))
             return null;
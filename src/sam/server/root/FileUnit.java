@@ -8,6 +8,10 @@ public final class FileUnit implements AutoCloseable, Closeable {
     private final long size;
     private final String name;
     private final InputStream inputStream;
+    private final String mime;
+    private final String etag;
+    private final String lastModified;
+    private final FileUnit gzipped;
 
     public long getSize() {
         return size;
@@ -18,14 +22,47 @@ public final class FileUnit implements AutoCloseable, Closeable {
     public InputStream getInputStream() {
         return inputStream;
     }
+    /**
+     * precomputed Content-Type, null if not known  
+     */
+    public String getMime() {
+        return mime;
+    }
+    /**
+     * precomputed ETag, null if not known  
+     */
+    public String getEtag() {
+        return etag;
+    }
+    /**
+     * precomputed Last-Modified (http-date), null if not known  
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+    /**
+     * gzip encoded variant of same content, null if not available  
+     */
+    public FileUnit getGzipped() {
+        return gzipped;
+    }
     public FileUnit(String name, long size, InputStream inputStream) {
+        this(name, size, inputStream, null, null, null, null);
+    }
+    public FileUnit(String name, long size, InputStream inputStream, String mime, String etag, String lastModified, FileUnit gzipped) {
         this.size = size;
         this.name = name;
         this.inputStream = inputStream;
+        this.mime = mime;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.gzipped = gzipped;
     }
     @Override
     public void close() throws IOException {
         inputStream.close();
+        if(gzipped != null)
+            gzipped.close();
     }
     
 
@@ -0,0 +1,118 @@
+package sam.server.root;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * first size bytes of a file, mapped in segments of {@link #SEGMENT_SIZE} (a single mapping is limited to 2gb).
+ * used by {@link MappedZipRoot} and {@link PackRoot}.
+ * <br>
+ * regions crossing a segment boundary are read through channel, not mapped per request.
+ * segments are unmapped on close, a mapped file can not be replaced or deleted on windows (e.g. by a repack),
+ * caller must make sure no region is read after that (roots are closed once requests on them are completed).
+ */
+final class MappedSegments implements Closeable {
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+
+    MappedSegments(FileChannel channel, long size) throws IOException {
+        this.channel = channel;
+        this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+    /**
+     * @return little endian view of length bytes at offset (position 0), null if they are not in a single segment
+     */
+    ByteBuffer slice(long offset, int length) {
+        int i = (int) (offset / SEGMENT_SIZE);
+        if(i >= segments.length)
+            return null;
+
+        int p = (int) (offset - i * SEGMENT_SIZE);
+        if(p + (long)length > segments[i].limit())
+            return null;
+
+        ByteBuffer b = segments[i].duplicate();
+        b.position(p);
+        b.limit(p + length);
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    InputStream region(long offset, long length) {
+        ByteBuffer b = length > Integer.MAX_VALUE ? null : slice(offset, (int) length);
+        return b != null ? new ByteBufferInputStream(b) : new ChannelInputStream(channel, offset, length);
+    }
+    @Override
+    public void close() {
+        for (int i = 0; i < segments.length; i++) {
+            unmap(segments[i]);
+            segments[i] = null;
+        }
+    }
+
+    private static final Method CLEANER, CLEAN;
+    private static final Object UNSAFE;
+
+    static {
+        Method cleaner = null, clean = null;
+        Object unsafe = null;
+        try {
+            // java 9+
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            clean = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            try {
+                // java 8
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (ReflectiveOperationException | RuntimeException e2) {
+                System.out.println("mapped buffers can not be unmapped (freed on gc): "+e2);
+                clean = null;
+            }
+        }
+        CLEANER = cleaner;
+        CLEAN = clean;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * releases mapping of buffer now instead of on gc, buffer (and its views) must not be used afterwards
+     */
+    static void unmap(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect() || CLEAN == null)
+            return;
+        try {
+            if(UNSAFE != null)
+                CLEAN.invoke(UNSAFE, buffer);
+            else {
+                Object c = CLEANER.invoke(buffer);
+                if(c != null)
+                    CLEAN.invoke(c);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("failed to unmap: "+e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package sam.server.root;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * zip root which maps the archive into memory and reads central directory itself.
+ * STORED entries are served as slices of the mapping, DEFLATED entries through pooled {@link Inflater}s,
+ * so unlike {@link ZipRoot}, entries can be read concurrently without contention.
+ */
+public final class MappedZipRoot implements ServerRoot {
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedSegments segments;
+    private final Map<String, ZipDirectory.Entry> map;
+    private final RootIndex index;
+    private final Queue<PooledInflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile Map<String, Path> repackMap;
+    private final Map<String, byte[]> kept = new ConcurrentHashMap<>();
+
+    public MappedZipRoot(Path root) throws IOException {
+        this.file = root;
+        this.channel = FileChannel.open(root, StandardOpenOption.READ);
+
+        MappedSegments segments = null;
+        try {
+            segments = new MappedSegments(channel, channel.size());
+
+            RootIndex loaded = RootIndex.load(root);
+            List<ZipDirectory.Entry> list;
+            if(loaded != null) 
+                list = loaded.entries;
+            else {
+                long[] stamp = RootIndex.stamp(root);
+                list = ZipDirectory.read(channel);
+                RootIndex.saveInBackground(root, stamp, list);
+            }
+
+            index = loaded != null ? loaded : new RootIndex(list);
+            map = new HashMap<>(list.size() * 4 / 3 + 1);
+            for (ZipDirectory.Entry e : list)
+                map.put(e.name, e);
+            this.segments = segments;
+        } catch (IOException | RuntimeException e) {
+            if(segments != null)
+                segments.close();
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public FileUnit getFileUnit(URI uri) throws IOException {
+        byte[] bytes = kept.get(toPath(uri));
+        if(bytes != null)
+            return new FileUnit(toPath(uri), bytes.length, new ByteArrayInputStream(bytes));
+
+        ZipDirectory.Entry e = map.get(toPath(uri));
+        return e == null || e.isDirectory() ? null : fileUnit(e);
+    }
+    @Override
+    public FileUnit getFileUnit(long hashcode) throws IOException {
+        ZipDirectory.Entry entry = index.get(hashcode);
+        if(entry != null)
+            return fileUnit(entry);
+
+        String hashcodeS = String.valueOf(hashcode);
+
+        Map<String, Path> repackMap = this.repackMap;
+        if(repackMap != null) {
+            Optional<String> value = repackMap.keySet().stream()
+                    .filter(s -> s.startsWith(hashcodeS))
+                    .filter(s -> hashcodeS.equals(s.indexOf('.') < 0 ? s : s.substring(0, s.indexOf('.'))))
+                    .findFirst();
+
+            if(value.isPresent()) {
+                Path p = repackMap.get(value.get());
+                return new FileUnit(p.getFileName().toString(), Files.size(p), Files.newInputStream(p, StandardOpenOption.READ));
+            }
+        }
+        return null;
+    }
+    private FileUnit fileUnit(ZipDirectory.Entry e) throws IOException {
+        InputStream in = segments.region(dataOffset(e), e.compressedSize);
+
+        if(e.method == ZipDirectory.DEFLATED)
+            in = new InflatingStream(in);
+        else if(e.method != ZipDirectory.STORED)
+            throw new ZipException("unsupported compression method: "+e.method+", entry: "+e.name);
+
+        return new FileUnit(e.name, e.size, in);
+    }
+    private long dataOffset(ZipDirectory.Entry e) throws IOException {
+        ByteBuffer b = segments.slice(e.localHeaderOffset, ZipDirectory.LOC_HEADER_SIZE);
+
+        // header crossing a segment boundary, or not a header (let ZipDirectory report it)
+        if(b == null || b.getInt(0) != ZipDirectory.LOC_SIG)
+            return ZipDirectory.dataOffset(channel, e);
+
+        return e.localHeaderOffset + ZipDirectory.LOC_HEADER_SIZE + (b.getShort(26) & 0xFFFF) + (b.getShort(28) & 0xFFFF);
+    }
+
+    @Override
+    public List<String> walkDirectory(URI uri) {
+        return ServerRoot.walkNames(map.keySet().stream(), toPath(uri));
+    }
+    @Override
+    public Path getRoot() {
+        return file;
+    }
+    @Override
+    public void addFile(Path file, String name) {
+        addRepackFile(file, name);
+    }
+    public synchronized void addRepackFile(Path file, String name) {
+        if(repackMap == null)
+            repackMap = new ConcurrentHashMap<>();
+
+        repackMap.put(name, file);
+    }
+    @Override
+    public boolean keep(URI uri, byte[] contents) {
+        // stored entries are served from mapping anyway 
+        ZipDirectory.Entry e = map.get(toPath(uri));
+        if(e == null || e.method != ZipDirectory.DEFLATED || e.size != contents.length)
+            return false;
+        kept.put(toPath(uri), contents);
+        return true;
+    }
+    @Override
+    public void close() throws IOException {
+        kept.clear();
+        // unmapped, or file can not be replaced by repack (on windows)
+        segments.close();
+        channel.close();
+        PooledInflater inf;
+        while((inf = inflaters.poll()) != null)
+            inf.inflater.end();
+
+        ZipRoot.repack(file, repackMap);
+    }
+
+    private static final class PooledInflater {
+        final Inflater inflater = new Inflater(true);
+        final byte[] buffer = new byte[8192];
+    }
+
+    private final class InflatingStream extends InputStream {
+        private final InputStream in;
+        private PooledInflater pooled;
+        private Inflater inflater;
+        private byte[] buffer;
+        private byte[] single;
+        private boolean dummyFed;
+
+        InflatingStream(InputStream in) {
+            this.in = in;
+            PooledInflater p = inflaters.poll();
+            this.pooled = p == null ? new PooledInflater() : p;
+            this.inflater = pooled.inflater;
+            this.buffer = pooled.buffer;
+        }
+        @Override
+        public int read() throws IOException {
+            if(single == null)
+                single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(inflater == null)
+                throw new IOException("stream closed");
+            if(len == 0)
+                return 0;
+
+            try {
+                while(true) {
+                    int n = inflater.inflate(b, off, len);
+                    if(n > 0)
+                        return n;
+                    if(inflater.finished() || inflater.needsDictionary())
+                        return -1;
+                    if(inflater.needsInput())
+                        fill();
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+        }
+        private void fill() throws IOException {
+            int n = in.read(buffer);
+            if(n > 0) {
+                inflater.setInput(buffer, 0, n);
+            } else if(!dummyFed) {
+                // nowrap inflater may need an extra byte to detect end of stream
+                dummyFed = true;
+                buffer[0] = 0;
+                inflater.setInput(buffer, 0, 1);
+            } else {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+        }
+        @Override
+        public void close() throws IOException {
+            if(inflater == null)
+                return;
+
+            inflater.reset();
+            inflaters.offer(pooled);
+            pooled = null;
+            inflater = null;
+            buffer = null;
+        }
+    }
+}
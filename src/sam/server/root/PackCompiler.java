@@ -0,0 +1,317 @@
+package sam.server.root;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import sam.server.BufferPool;
+import sam.server.ServerUtils;
+import sam.server.Utils;
+
+/**
+ * compiles a folder or a zip into a pack served by {@link PackRoot}.
+ * bodies (of at least a page) are page aligned, text assets get a gzip variant, mime/etag/last-modified are computed once here.
+ * text assets are rewritten here too (links, url() of stylesheets), packs are served as they are compiled.
+ */
+public final class PackCompiler {
+    private static final int MAX_GZIP_SIZE = 8*1024*1024;
+
+    private PackCompiler() {}
+
+    public interface Rewriter {
+        /**
+         * @param name relative to root
+         * @return rewritten body, null if body is not rewritten
+         */
+        byte[] rewrite(String name, String mime, byte[] body) throws IOException;
+    }
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+    private static final class Item {
+        final String name;
+        final long size;
+        final long modified;
+        final Source source;
+
+        long bodyOffset, bodyLength, gzipOffset, gzipLength;
+        String meta;
+
+        Item(String name, long size, long modified, Source source) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.source = source;
+        }
+    }
+
+    public static void compile(Path source, Path out) throws IOException {
+        compile(source, out, null);
+    }
+    /**
+     * @param rewriter applied to text assets, may be null
+     */
+    public static void compile(Path source, Path out, Rewriter rewriter) throws IOException {
+        long time = System.currentTimeMillis();
+
+        if(Files.isDirectory(source)) {
+            List<Item> items;
+            try(Stream<Path> strm = Files.walk(source)) {
+                items = strm.filter(Files::isRegularFile)
+                        .map(p -> item(source, p))
+                        .collect(Collectors.toList());
+            }
+            write(items, out, rewriter);
+        } else {
+            try(ZipFile zip = new ZipFile(source.toFile())) {
+                List<Item> items = new ArrayList<>();
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry ze = entries.nextElement();
+                    if(!ze.isDirectory())
+                        items.add(new Item(ze.getName().replace('\\', '/'), ze.getSize(), ze.getTime(), () -> zip.getInputStream(ze)));
+                }
+                write(items, out, rewriter);
+            }
+        }
+        System.out.println(Utils.yellow("compiled: ")+source+Utils.yellow(" -> ")+out+"  ("+(System.currentTimeMillis() - time)+"ms)");
+    }
+    private static Item item(Path root, Path p) {
+        try {
+            String name = root.relativize(p).toString().replace('\\', '/');
+            return new Item(name, Files.size(p), Files.getLastModifiedTime(p).toMillis(), () -> Files.newInputStream(p));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void write(List<Item> list, Path out, Rewriter rewriter) throws IOException {
+        // first wins on duplicate names (e.g. zip with repeated entries)
+        Map<String, Item> map = new LinkedHashMap<>();
+        list.forEach(item -> map.putIfAbsent(item.name, item));
+        Item[] items = map.values().stream().sorted(Comparator.comparing(i -> i.name)).toArray(Item[]::new);
+
+        long indexOffset;
+        try(CountingOutputStream os = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(out), 256*1024))) {
+            os.write(new byte[PackRoot.PAGE_SIZE]);
+
+            for (Item item : items)
+                writeBody(item, os, rewriter);
+
+            indexOffset = os.count;
+            writeIndex(items, os);
+        }
+        ByteBuffer header = ByteBuffer.allocate(40);
+        header.putInt(PackRoot.MAGIC)
+        .putInt(PackRoot.VERSION)
+        .putInt(items.length)
+        .putInt(buckets(items.length))
+        .putInt(slots(items.length))
+        .putInt((int) Arrays.stream(items).filter(i -> RootIndex.hashKey(i.name) != Long.MIN_VALUE).count())
+        .putLong(indexOffset)
+        .putLong(Files.size(out) - indexOffset);
+        header.flip();
+
+        try(FileChannel fc = FileChannel.open(out, StandardOpenOption.WRITE)) {
+            fc.write(header, 0);
+        }
+    }
+    private static void writeBody(Item item, CountingOutputStream os, Rewriter rewriter) throws IOException {
+        String mime = ServerUtils.getMime(item.name);
+        CRC32 crc = new CRC32();
+        byte[] gzip = null;
+
+        // small bodies are packed together, they would waste most of a page
+        if(item.size >= PackRoot.PAGE_SIZE)
+            os.align();
+        item.bodyOffset = os.count;
+
+        try(InputStream is = item.source.open()) {
+            if(ServerUtils.isText(mime) && (item.size <= MAX_GZIP_SIZE || rewriter != null)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.max(item.size, 32));
+                ServerUtils.pipe(is, bos, item.size);
+                byte[] bytes = bos.toByteArray();
+                byte[] rewritten = rewriter == null ? null : rewriter.rewrite(item.name, mime, bytes);
+                if(rewritten != null)
+                    bytes = rewritten;
+                crc.update(bytes);
+                os.write(bytes);
+
+                if(bytes.length <= MAX_GZIP_SIZE) {
+                    bos.reset();
+                    try(GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+                        gos.write(bytes);
+                    }
+                    if(bos.size() < bytes.length * 0.9)
+                        gzip = bos.toByteArray();
+                }
+            } else {
+                byte[] buffer = BufferPool.acquire(item.size);
+                try {
+                    int n;
+                    while((n = is.read(buffer)) > 0) {
+                        crc.update(buffer, 0, n);
+                        os.write(buffer, 0, n);
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+            }
+        }
+        item.bodyLength = os.count - item.bodyOffset;
+
+        if(gzip != null) {
+            if(gzip.length >= PackRoot.PAGE_SIZE)
+                os.align();
+            item.gzipOffset = os.count;
+            item.gzipLength = gzip.length;
+            os.write(gzip);
+        }
+        String etag = "\""+Long.toHexString(crc.getValue())+"-"+Long.toHexString(item.bodyLength)+"\"";
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(item.modified).atOffset(ZoneOffset.UTC));
+        item.meta = mime+"\n"+etag+"\n"+lastModified;
+    }
+    static int buckets(int count) {
+        return Math.max(1, count / 4);
+    }
+    static int slots(int count) {
+        return Math.max(1, count + count / 4);
+    }
+    private static void writeIndex(Item[] items, OutputStream os) throws IOException {
+        int n = items.length;
+        int buckets = buckets(n);
+        int slots = slots(n);
+
+        byte[][] names = new byte[n][];
+        long[] hashes = new long[n];
+        List<List<Integer>> byBucket = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++)
+            byBucket.add(new ArrayList<>());
+
+        for (int i = 0; i < n; i++) {
+            names[i] = items[i].name.getBytes(StandardCharsets.UTF_8);
+            hashes[i] = PackRoot.hash(names[i]);
+            byBucket.get(PackRoot.bucket(hashes[i], buckets)).add(i);
+        }
+
+        // hash and displace: largest buckets first, find a displacement placing all keys of a bucket in free slots
+        int[] displacements = new int[buckets];
+        int[] table = new int[slots];
+        Arrays.fill(table, -1);
+
+        Integer[] order = new Integer[buckets];
+        for (int i = 0; i < buckets; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt((Integer b) -> byBucket.get(b).size()).reversed());
+
+        for (int b : order) {
+            List<Integer> keys = byBucket.get(b);
+            if(keys.isEmpty())
+                break;
+
+            int[] taken = new int[keys.size()];
+            search:
+            for (int d = 0; ; d++) {
+                if(d == 1 << 24)
+                    throw new IOException("failed to build perfect hash");
+
+                for (int k = 0; k < keys.size(); k++) {
+                    int s = PackRoot.slot(hashes[keys.get(k)], d, slots);
+                    if(table[s] >= 0) {
+                        for (int j = 0; j < k; j++)
+                            table[taken[j]] = -1;
+                        continue search;
+                    }
+                    table[s] = keys.get(k);
+                    taken[k] = s;
+                }
+                displacements[b] = d;
+                break;
+            }
+        }
+
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        ByteBuffer index = ByteBuffer.allocate(buckets * 4 + slots * 4 + n * PackRoot.ENTRY_SIZE);
+        for (int d : displacements)
+            index.putInt(d);
+        for (int t : table)
+            index.putInt(t);
+
+        for (int i = 0; i < n; i++) {
+            Item item = items[i];
+            byte[] meta = item.meta.getBytes(StandardCharsets.UTF_8);
+
+            index.putInt(blob.size()).putInt(names[i].length);
+            blob.write(names[i]);
+            index.putLong(item.bodyOffset).putLong(item.bodyLength)
+            .putLong(item.gzipOffset).putLong(item.gzipLength)
+            .putInt(blob.size()).putInt(meta.length);
+            blob.write(meta);
+        }
+        os.write(index.array());
+
+        // items are sorted by name, keys are sorted separately
+        long[][] keys = new long[n][];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            long key = RootIndex.hashKey(items[i].name);
+            if(key != Long.MIN_VALUE)
+                keys[k++] = new long[] {key, i};
+        }
+        Arrays.sort(keys, 0, k, Comparator.comparingLong(a -> a[0]));
+        ByteBuffer hashKeys = ByteBuffer.allocate(k * PackRoot.HASH_KEY_SIZE);
+        for (int i = 0; i < k; i++)
+            hashKeys.putLong(keys[i][0]).putInt((int) keys[i][1]);
+
+        os.write(hashKeys.array());
+        blob.writeTo(os);
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+        void align() throws IOException {
+            int pad = (int) ((PackRoot.PAGE_SIZE - count % PackRoot.PAGE_SIZE) % PackRoot.PAGE_SIZE);
+            if(pad != 0)
+                write(new byte[pad], 0, pad);
+        }
+    }
+}
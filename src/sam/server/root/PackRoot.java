@@ -0,0 +1,211 @@
+package sam.server.root;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import sam.server.Utils;
+
+/**
+ * serves a pack compiled by {@link PackCompiler}.
+ * <pre>
+ * header (first page):
+ *   int magic, int version, int count, int buckets, int slots, int hashKeyCount, long indexOffset, long indexLength
+ * bodies: page aligned (if not smaller than a page), identity and (optional) gzip variant of every entry
+ * index (at indexOffset):
+ *   int[buckets] displacements, int[slots] entry (-1 if empty)  : perfect hash of entry names
+ *   entries (ENTRY_SIZE each): int nameOffset, int nameLength, long bodyOffset, long bodyLength, long gzipOffset, long gzipLength, int metaOffset, int metaLength
+ *   hash keys (sorted): long key, int entry
+ *   blob: names and meta ("mime\netag\nlast-modified"), utf-8
+ * </pre>
+ * unlike other roots, it is read-only, resources added with {@link #addFile(Path, String)} are only kept for the session.
+ */
+public final class PackRoot implements ServerRoot {
+    static final int MAGIC = 0x5350414B;
+    static final int VERSION = 1;
+    static final int PAGE_SIZE = 4096;
+    static final int ENTRY_SIZE = 48;
+    static final int HASH_KEY_SIZE = 12;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedSegments segments;
+    private final ByteBuffer index;
+
+    private final int count;
+    private final int buckets;
+    private final int slots;
+    private final int hashKeyCount;
+    private final int slotsPos, entriesPos, hashKeysPos, blobPos;
+    private final Map<String, Path> added = new ConcurrentHashMap<>();
+
+    public PackRoot(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        ByteBuffer index = null;
+        try {
+            ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 40);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("not a pack file (or different version): "+file);
+
+            count = header.getInt(8);
+            buckets = header.getInt(12);
+            slots = header.getInt(16);
+            hashKeyCount = header.getInt(20);
+            long indexOffset = header.getLong(24);
+            index = channel.map(MapMode.READ_ONLY, indexOffset, header.getLong(32));
+            MappedSegments.unmap(header);
+
+            slotsPos = buckets * 4;
+            entriesPos = slotsPos + slots * 4;
+            hashKeysPos = entriesPos + count * ENTRY_SIZE;
+            blobPos = hashKeysPos + hashKeyCount * HASH_KEY_SIZE;
+
+            // bodies are before index 
+            segments = new MappedSegments(channel, indexOffset);
+            this.index = index;
+        } catch (IOException | RuntimeException e) {
+            MappedSegments.unmap(index);
+            channel.close();
+            throw e;
+        }
+    }
+
+    static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    static int bucket(long hash, int buckets) {
+        return (int) Long.remainderUnsigned(mix(hash), buckets);
+    }
+    static int slot(long hash, int displacement, int slots) {
+        return (int) Long.remainderUnsigned(mix(hash + (displacement + 1) * 0x9E3779B97F4A7C15L), slots);
+    }
+
+    private int find(String name) {
+        if(count == 0)
+            return -1;
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long h = hash(bytes);
+        int d = index.getInt(bucket(h, buckets) * 4);
+        int entry = index.getInt(slotsPos + slot(h, d, slots) * 4);
+
+        if(entry < 0)
+            return -1;
+
+        int e = entriesPos + entry * ENTRY_SIZE;
+        int nameOffset = blobPos + index.getInt(e);
+        int nameLength = index.getInt(e + 4);
+
+        if(nameLength != bytes.length)
+            return -1;
+        for (int i = 0; i < bytes.length; i++) {
+            if(index.get(nameOffset + i) != bytes[i])
+                return -1;
+        }
+        return entry;
+    }
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer b = index.duplicate();
+        b.position(blobPos + offset);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    private String name(int entry) {
+        int e = entriesPos + entry * ENTRY_SIZE;
+        return string(index.getInt(e), index.getInt(e + 4));
+    }
+    private FileUnit fileUnit(int entry) throws IOException {
+        int e = entriesPos + entry * ENTRY_SIZE;
+        String name = string(index.getInt(e), index.getInt(e + 4));
+        String[] meta = string(index.getInt(e + 40), index.getInt(e + 44)).split("\n", 3);
+
+        long gzipLength = index.getLong(e + 32);
+        FileUnit gzipped = gzipLength <= 0 ? null : new FileUnit(name, gzipLength, body(index.getLong(e + 24), gzipLength), meta[0], meta[1], meta[2], null);
+
+        long length = index.getLong(e + 16);
+        return new FileUnit(name, length, body(index.getLong(e + 8), length), meta[0], meta[1], meta[2], gzipped);
+    }
+    private InputStream body(long offset, long length) {
+        return segments.region(offset, length);
+    }
+
+    @Override
+    public FileUnit getFileUnit(URI uri) throws IOException {
+        int entry = find(toPath(uri));
+        return entry < 0 ? null : fileUnit(entry);
+    }
+    @Override
+    public FileUnit getFileUnit(long hashcode) throws IOException {
+        int lo = 0, hi = hashKeyCount - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = index.getLong(hashKeysPos + mid * HASH_KEY_SIZE);
+            if(key < hashcode)
+                lo = mid + 1;
+            else if(key > hashcode)
+                hi = mid - 1;
+            else
+                return fileUnit(index.getInt(hashKeysPos + mid * HASH_KEY_SIZE + 8));
+        }
+
+        String hashcodeS = String.valueOf(hashcode);
+        Optional<String> value = added.keySet().stream()
+                .filter(s -> s.startsWith(hashcodeS))
+                .filter(s -> hashcodeS.equals(s.indexOf('.') < 0 ? s : s.substring(0, s.indexOf('.'))))
+                .findFirst();
+
+        if(value.isPresent()) {
+            Path p = added.get(value.get());
+            return new FileUnit(p.getFileName().toString(), Files.size(p), Files.newInputStream(p, StandardOpenOption.READ));
+        }
+        return null;
+    }
+    @Override
+    public List<String> walkDirectory(URI uri) {
+        return ServerRoot.walkNames(IntStream.range(0, count).mapToObj(this::name), toPath(uri));
+    }
+    @Override
+    public Path getRoot() {
+        return file;
+    }
+    @Override
+    public void addFile(Path file, String name) {
+        added.put(name, file);
+    }
+    @Override
+    public void close() throws IOException {
+        segments.close();
+        MappedSegments.unmap(index);
+        channel.close();
+        if(!added.isEmpty())
+            System.out.println(Utils.yellow("pack is read-only, recompile to include: ")+added.keySet());
+    }
+}
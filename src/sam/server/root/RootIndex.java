@@ -0,0 +1,181 @@
+package sam.server.root;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sam.server.Utils;
+
+/**
+ * compact listing of a root (names, sizes, offsets, hash keys), persisted as "&lt;root&gt;.idx" next to the root.
+ * enabled with "sam.root.index", valid only while size and last-modified time of root are unchanged.
+ */
+final class RootIndex {
+    static final boolean ENABLED = Boolean.getBoolean("sam.root.index");
+
+    private static final int MAGIC = 0x53524958;
+    private static final int VERSION = 1;
+    private static final long NO_KEY = Long.MIN_VALUE;
+
+    final List<ZipDirectory.Entry> entries;
+    private final Map<Long, ZipDirectory.Entry> byHash;
+
+    RootIndex(List<ZipDirectory.Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.byHash = new HashMap<>();
+
+        for (ZipDirectory.Entry e : entries) {
+            long key = hashKey(e.name);
+            if(key != NO_KEY && !e.isDirectory())
+                byHash.putIfAbsent(key, e);
+        }
+    }
+    ZipDirectory.Entry get(long hashcode) {
+        return byHash.get(hashcode);
+    }
+
+    /**
+     * key used by {@link ServerRoot#getFileUnit(long)}, i.e. name up to first '.', if it is a number
+     */
+    static long hashKey(String name) {
+        int end = name.indexOf('.');
+        String s = end < 0 ? name : name.substring(0, end);
+
+        if(s.isEmpty() || s.length() > 20)
+            return NO_KEY;
+
+        for (int i = s.charAt(0) == '-' ? 1 : 0; i < s.length(); i++) {
+            if(!Character.isDigit(s.charAt(i)))
+                return NO_KEY;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return NO_KEY;
+        }
+    }
+    static Path sidecar(Path root) {
+        Path p = root.toAbsolutePath().normalize();
+        Path name = p.getFileName();
+        return name == null ? null : p.resolveSibling(name + ".idx");
+    }
+
+    /**
+     * @return null if disabled, missing, unreadable or stale
+     */
+    static RootIndex load(Path root) {
+        Path sidecar = ENABLED ? sidecar(root) : null;
+        if(sidecar == null || Files.notExists(sidecar))
+            return null;
+
+        try(DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar), 64*1024))) {
+            if(dis.readInt() != MAGIC || dis.readInt() != VERSION)
+                return null;
+            long[] stamp = stamp(root);
+            if(dis.readLong() != stamp[0] || dis.readLong() != stamp[1])
+                return null;
+
+            int count = dis.readInt();
+            List<ZipDirectory.Entry> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                int method = dis.readShort();
+                int flags = dis.readShort() & 0xFFFF;
+                long crc = dis.readInt() & 0xFFFFFFFFL;
+                long csize = dis.readLong();
+                long size = dis.readLong();
+                long offset = dis.readLong();
+                long time = dis.readInt() & 0xFFFFFFFFL;
+                list.add(new ZipDirectory.Entry(name, method, flags, crc, csize, size, offset, time));
+            }
+            return new RootIndex(list);
+        } catch (IOException e) {
+            System.out.println(Utils.red("failed to read index: ")+sidecar+"  "+e);
+            return null;
+        }
+    }
+
+    /**
+     * size and last-modified time of root, to be taken before root is listed
+     */
+    static long[] stamp(Path root) throws IOException {
+        return new long[]{Files.isDirectory(root) ? 0 : Files.size(root), Files.getLastModifiedTime(root).toMillis()};
+    }
+
+    /**
+     * writes sidecar on a background thread, does nothing if disabled
+     */
+    static void saveInBackground(Path root, long[] stamp, List<ZipDirectory.Entry> entries) {
+        inBackground(root, () -> entries, stamp);
+    }
+
+    /**
+     * reads central directory of zip and writes sidecar on a background thread, does nothing if disabled
+     */
+    static void rebuildInBackground(Path zip) {
+        inBackground(zip, () -> {
+            try(FileChannel fc = FileChannel.open(zip, StandardOpenOption.READ)) {
+                return ZipDirectory.read(fc);
+            }
+        }, null);
+    }
+
+    private interface EntriesSupplier {
+        List<ZipDirectory.Entry> get() throws IOException;
+    }
+    private static void inBackground(Path root, EntriesSupplier entries, long[] stamp) {
+        Path sidecar = ENABLED ? sidecar(root) : null;
+        if(sidecar == null)
+            return;
+
+        Thread t = new Thread(() -> {
+            try {
+                long[] st = stamp != null ? stamp : stamp(root);
+                save(st, sidecar, entries.get());
+            } catch (IOException e) {
+                System.out.println(Utils.red("failed to write index: ")+sidecar+"  "+e);
+            }
+        }, "root-index");
+        t.setDaemon(true);
+        t.start();
+    }
+    private static void save(long[] stamp, Path sidecar, List<ZipDirectory.Entry> entries) throws IOException {
+        Path temp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), ".tmp");
+
+        try {
+            try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64*1024))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeLong(stamp[0]);
+                dos.writeLong(stamp[1]);
+                dos.writeInt(entries.size());
+
+                for (ZipDirectory.Entry e : entries) {
+                    dos.writeUTF(e.name);
+                    dos.writeShort(e.method);
+                    dos.writeShort(e.flags);
+                    dos.writeInt((int) e.crc);
+                    dos.writeLong(e.compressedSize);
+                    dos.writeLong(e.size);
+                    dos.writeLong(e.localHeaderOffset);
+                    dos.writeInt((int) e.dosTime);
+                }
+            }
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public interface ServerRoot extends AutoCloseable, Closeable {
     
@@ -12,7 +15,43 @@ public interface ServerRoot extends AutoCloseable, Closeable {
     FileUnit getFileUnit(long hashcode) throws IOException;
     List<String> walkDirectory(URI uri);
     Path getRoot();
+    /**
+     * persist a downloaded resource into this root
+     */
+    void addFile(Path file, String name) throws IOException;
+    /**
+     * contents of a hot resource, read by warm-up. 
+     * a root where reading is costly (e.g. inflating a zip entry) may hold it and serve it from memory
+     * @return true if held 
+     */
+    default boolean keep(URI uri, byte[] contents) {
+        return false;
+    }
+    /**
+     * listener is called with (relative, '/' separated) name of a resource added to root 
+     * other than through {@link #addFile(Path, String)} (e.g. by another program), or null if not known which.
+     * roots which cannot change, never call it 
+     */
+    default void onAdded(Consumer<String> listener) {}
     default String toPath(URI uri) {
         return uri.getPath().substring(1);
     }
+    /**
+     * immediate children of dir, from a flat list of '/' separated names  
+     * @return null if dir is not found
+     */
+    static List<String> walkNames(Stream<String> names, String dir) {
+        String prefix = dir.isEmpty() || dir.endsWith("/") ? dir : dir + "/";
+
+        List<String> list = names
+                .filter(s -> s.length() > prefix.length() && s.startsWith(prefix))
+                .map(s -> {
+                    int index = s.indexOf('/', prefix.length());
+                    return s.substring(prefix.length(), index < 0 ? s.length() : index);
+                })
+                .distinct()
+                .collect(Collectors.toList());
+
+        return list.isEmpty() && !prefix.isEmpty() ? null : list;
+    }
 }
@@ -0,0 +1,160 @@
+package sam.server.root;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * reads central directory of a zip (including zip64) archive, without going through {@link java.util.zip.ZipFile}
+ */
+final class ZipDirectory {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    static final int LOC_SIG = 0x04034b50;
+    static final int LOC_HEADER_SIZE = 30;
+    private static final int EOCD_SIZE = 22;
+    private static final long U32 = 0xFFFFFFFFL;
+    private static final int UTF8_FLAG = 1 << 11;
+    // names without UTF8_FLAG (zip spec)
+    private static final Charset CP437 = Charset.forName("IBM437");
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final int flags;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        final long dosTime;
+
+        Entry(String name, int method, int flags, long crc, long compressedSize, long size, long localHeaderOffset, long dosTime) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.dosTime = dosTime;
+        }
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private ZipDirectory() {}
+
+    static List<Entry> read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + 0xFFFF);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = read(channel, tailStart, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if(tail.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if(eocd < 0)
+            throw new ZipException("end of central directory not found");
+
+        long count = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = tail.getInt(eocd + 12) & U32;
+        long cenOffset = tail.getInt(eocd + 16) & U32;
+
+        // saturated values may be actual ones (e.g. 65535 entries), zip64 record is used only if its locator is there
+        ByteBuffer locator = eocd >= 20 ? tail : tailStart + eocd >= 20 ? read(channel, tailStart + eocd - 20, 20) : null;
+        int l = locator == tail ? eocd - 20 : 0;
+        if(locator != null && locator.getInt(l) == ZIP64_LOCATOR_SIG) {
+            ByteBuffer z64 = read(channel, locator.getLong(l + 8), 56);
+            if(z64.getInt(0) != ZIP64_EOCD_SIG)
+                throw new ZipException("zip64 end of central directory not found");
+
+            count = z64.getLong(32);
+            cenSize = z64.getLong(40);
+            cenOffset = z64.getLong(48);
+        }
+        if(cenSize > Integer.MAX_VALUE)
+            throw new ZipException("central directory too large: "+cenSize);
+
+        ByteBuffer cen = read(channel, cenOffset, (int) cenSize);
+        List<Entry> list = new ArrayList<>((int)Math.min(count, 1 << 16));
+        int pos = 0;
+
+        for (long i = 0; i < count; i++) {
+            if(cen.getInt(pos) != CEN_SIG)
+                throw new ZipException("invalid central directory header at: "+(cenOffset + pos));
+
+            int flags = cen.getShort(pos + 8) & 0xFFFF;
+            int method = cen.getShort(pos + 10) & 0xFFFF;
+            long dosTime = cen.getInt(pos + 12) & U32;
+            long crc = cen.getInt(pos + 16) & U32;
+            long csize = cen.getInt(pos + 20) & U32;
+            long size = cen.getInt(pos + 24) & U32;
+            int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            long offset = cen.getInt(pos + 42) & U32;
+
+            byte[] nameBytes = new byte[nameLen];
+            cen.position(pos + 46);
+            cen.get(nameBytes);
+            String name = new String(nameBytes, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : CP437).replace('\\', '/');
+
+            // zip64 extended information, fields present only for values saturated in the header
+            int extra = pos + 46 + nameLen;
+            int extraEnd = extra + extraLen;
+            while(extra + 4 <= extraEnd) {
+                int id = cen.getShort(extra) & 0xFFFF;
+                int len = cen.getShort(extra + 2) & 0xFFFF;
+                if(id == 0x0001) {
+                    int p = extra + 4;
+                    if(size == U32) { size = cen.getLong(p); p += 8; }
+                    if(csize == U32) { csize = cen.getLong(p); p += 8; }
+                    if(offset == U32) { offset = cen.getLong(p); }
+                    break;
+                }
+                extra += 4 + len;
+            }
+            list.add(new Entry(name, method, flags, crc, csize, size, offset, dosTime));
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return list;
+    }
+
+    /**
+     * @return offset of entry data (after local header)
+     */
+    static long dataOffset(FileChannel channel, Entry e) throws IOException {
+        ByteBuffer loc = read(channel, e.localHeaderOffset, LOC_HEADER_SIZE);
+        if(loc.getInt(0) != LOC_SIG)
+            throw new ZipException("invalid local header: "+e.name);
+
+        return e.localHeaderOffset + LOC_HEADER_SIZE + (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,381 @@
+package sam.server.root;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import sam.server.Utils;
+
+/**
+ * writes a zip of entries of an existing zip and new files (new ones replace existing ones of same name).
+ * <br>
+ * existing entries are copied as they are (compressed data is not inflated/deflated again).
+ * new files are split into blocks deflated in parallel on {@link ForkJoinPool#commonPool()} (as pigz does),
+ * each block primed with last 32K of the previous one, and sync flushed, so concatenated blocks form a single deflate stream.
+ * <br>
+ * output order is deterministic: existing entries in their order, then new files sorted by name.
+ */
+final class ZipRepacker {
+    private static final int BLOCK_SIZE = 1024*1024;
+    private static final int DICTIONARY_SIZE = 32*1024;
+    private static final long U32 = 0xFFFFFFFFL;
+    // deflate may grow incompressible data a little, such entries get zip64 sizes upfront
+    private static final long ZIP64_THRESHOLD = U32 - (U32 >>> 8);
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
+    private static final class Written {
+        final byte[] name;
+        final int method, flags;
+        final long dosTime;
+        long localHeaderOffset, crc, compressedSize, size;
+
+        Written(byte[] name, int method, int flags, long dosTime, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+        boolean zip64() {
+            return size >= U32 || compressedSize >= U32 || localHeaderOffset >= U32;
+        }
+    }
+
+    private final FileChannel out;
+    private final List<Written> written = new ArrayList<>();
+    private long position;
+
+    private ZipRepacker(FileChannel out) {
+        this.out = out;
+    }
+
+    static void repack(Path source, Map<String, Path> added, Path target) throws IOException {
+        Map<String, Path> sorted = new TreeMap<>(added);
+
+        try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+            ZipRepacker z = new ZipRepacker(out);
+
+            for (ZipDirectory.Entry e : ZipDirectory.read(in)) {
+                if(!sorted.containsKey(e.name))
+                    z.copy(in, e);
+            }
+            z.deflate(sorted);
+            z.finish();
+        }
+    }
+
+    private void copy(FileChannel in, ZipDirectory.Entry e) throws IOException {
+        Written w = new Written(e.name.getBytes(StandardCharsets.UTF_8), e.method, (e.flags & ~DATA_DESCRIPTOR_FLAG) | UTF8_FLAG, e.dosTime, position);
+        w.crc = e.crc;
+        w.size = e.size;
+        w.compressedSize = e.compressedSize;
+
+        writeLocalHeader(w, w.size >= U32 || w.compressedSize >= U32);
+
+        long start = ZipDirectory.dataOffset(in, e);
+        long done = 0;
+        // transferTo writes at channel position, headers are written at explicit positions
+        out.position(position);
+        while(done < e.compressedSize) {
+            long n = in.transferTo(start + done, e.compressedSize - done, out);
+            if(n <= 0)
+                throw new IOException("unexpected end of entry: "+e.name);
+            done += n;
+        }
+        position += done;
+        written.add(w);
+    }
+
+    /**
+     * a block of a new file, deflated in background
+     */
+    private static final class Block {
+        final Written entry;
+        final boolean first, last;
+        final boolean zip64;
+        final CRC32 crc;
+        final ForkJoinTask<byte[]> deflated;
+
+        Block(Written entry, boolean first, boolean last, boolean zip64, CRC32 crc, ForkJoinTask<byte[]> deflated) {
+            this.entry = entry;
+            this.first = first;
+            this.last = last;
+            this.zip64 = zip64;
+            this.crc = crc;
+            this.deflated = deflated;
+        }
+    }
+
+    private void deflate(Map<String, Path> files) throws IOException {
+        // blocks are read (and submitted) ahead of writing, bounded by window
+        int window = ForkJoinPool.getCommonPoolParallelism() * 2 + 1;
+        Deque<Block> pending = new ArrayDeque<>();
+        Iterator<Map.Entry<String, Path>> itr = files.entrySet().iterator();
+
+        InputStream is = null;
+        Written entry = null;
+        CRC32 crc = null;
+        boolean zip64 = false, first = false;
+        byte[] dictionary = null;
+
+        try {
+            while(true) {
+                while(pending.size() < window) {
+                    if(is == null) {
+                        if(!itr.hasNext())
+                            break;
+                        Map.Entry<String, Path> e = itr.next();
+                        Path p = e.getValue();
+                        try {
+                            is = Files.newInputStream(p);
+                            zip64 = Files.size(p) >= ZIP64_THRESHOLD;
+                            entry = new Written(e.getKey().getBytes(StandardCharsets.UTF_8), ZipDirectory.DEFLATED, UTF8_FLAG, dosTime(Files.getLastModifiedTime(p).toMillis()), -1);
+                        } catch (IOException e2) {
+                            System.out.println(Utils.red("failed repack: ")+p+"  "+e2);
+                            close(is);
+                            is = null;
+                            continue;
+                        }
+                        crc = new CRC32();
+                        first = true;
+                        dictionary = null;
+                    }
+
+                    byte[] block = readBlock(is);
+                    boolean last = block.length < BLOCK_SIZE;
+                    crc.update(block);
+                    entry.size += block.length;
+
+                    byte[] dict = dictionary;
+                    pending.add(new Block(entry, first, last, zip64, crc, ForkJoinPool.commonPool().submit(() -> deflate(block, dict, last))));
+                    first = false;
+
+                    if(last) {
+                        is.close();
+                        is = null;
+                    } else {
+                        dictionary = new byte[DICTIONARY_SIZE];
+                        System.arraycopy(block, block.length - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+                    }
+                }
+                Block b = pending.poll();
+                if(b == null)
+                    break;
+                write(b);
+            }
+        } finally {
+            close(is);
+            pending.forEach(b -> b.deflated.cancel(false));
+        }
+    }
+    private static void close(InputStream is) {
+        try {
+            if(is != null)
+                is.close();
+        } catch (IOException e) {}
+    }
+    private static byte[] readBlock(InputStream is) throws IOException {
+        byte[] bytes = new byte[BLOCK_SIZE];
+        int n = 0, r;
+        while(n < bytes.length && (r = is.read(bytes, n, bytes.length - n)) > 0)
+            n += r;
+        if(n == bytes.length)
+            return bytes;
+
+        byte[] b = new byte[n];
+        System.arraycopy(bytes, 0, b, 0, n);
+        return b;
+    }
+    private static byte[] deflate(byte[] block, byte[] dictionary, boolean last) {
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if(dictionary != null)
+                d.setDictionary(dictionary);
+            d.setInput(block);
+            if(last)
+                d.finish();
+
+            byte[] buffer = new byte[block.length + block.length / 8 + 64];
+            int n = 0;
+            while(true) {
+                n += d.deflate(buffer, n, buffer.length - n, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if(last ? d.finished() : n < buffer.length)
+                    break;
+                if(n == buffer.length) {
+                    byte[] b = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, b, 0, n);
+                    buffer = b;
+                }
+            }
+            byte[] b = new byte[n];
+            System.arraycopy(buffer, 0, b, 0, n);
+            return b;
+        } finally {
+            d.end();
+        }
+    }
+    private void write(Block b) throws IOException {
+        Written w = b.entry;
+        if(b.first) {
+            w.localHeaderOffset = position;
+            writeLocalHeader(w, b.zip64);
+            written.add(w);
+        }
+
+        byte[] bytes;
+        try {
+            bytes = b.deflated.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        write(ByteBuffer.wrap(bytes));
+        w.compressedSize += bytes.length;
+
+        // size is counted as blocks are read, complete when last block is read
+        if(b.last) {
+            w.crc = b.crc.getValue();
+            patchLocalHeader(w, b.zip64);
+        }
+    }
+
+    private void writeLocalHeader(Written w, boolean zip64) throws IOException {
+        ByteBuffer b = buffer(30 + w.name.length + (zip64 ? 20 : 0));
+        b.putInt(LOC_SIG)
+        .putShort((short) (zip64 ? 45 : 20))
+        .putShort((short) w.flags)
+        .putShort((short) w.method)
+        .putInt((int) w.dosTime)
+        .putInt((int) w.crc)
+        .putInt((int) (zip64 ? U32 : w.compressedSize))
+        .putInt((int) (zip64 ? U32 : w.size))
+        .putShort((short) w.name.length)
+        .putShort((short) (zip64 ? 20 : 0))
+        .put(w.name);
+        if(zip64)
+            b.putShort((short) 1).putShort((short) 16).putLong(w.size).putLong(w.compressedSize);
+        b.flip();
+        write(b);
+    }
+    /**
+     * crc and sizes of a deflated entry are known only once it is written
+     */
+    private void patchLocalHeader(Written w, boolean zip64) throws IOException {
+        ByteBuffer b = buffer(12);
+        b.putInt((int) w.crc);
+        if(zip64)
+            b.putInt((int) U32).putInt((int) U32);
+        else
+            b.putInt((int) w.compressedSize).putInt((int) w.size);
+        b.flip();
+        writeAt(b, w.localHeaderOffset + 14);
+
+        if(zip64) {
+            b = buffer(16).putLong(w.size).putLong(w.compressedSize);
+            b.flip();
+            writeAt(b, w.localHeaderOffset + 30 + w.name.length + 4);
+        }
+    }
+    private void finish() throws IOException {
+        long cenOffset = position;
+        for (Written w : written) {
+            boolean zip64 = w.zip64();
+            ByteBuffer b = buffer(46 + w.name.length + (zip64 ? 28 : 0));
+            b.putInt(CEN_SIG)
+            .putShort((short) (zip64 ? 45 : 20))
+            .putShort((short) (zip64 ? 45 : 20))
+            .putShort((short) w.flags)
+            .putShort((short) w.method)
+            .putInt((int) w.dosTime)
+            .putInt((int) w.crc)
+            .putInt((int) (zip64 ? U32 : w.compressedSize))
+            .putInt((int) (zip64 ? U32 : w.size))
+            .putShort((short) w.name.length)
+            .putShort((short) (zip64 ? 28 : 0))
+            .putShort((short) 0) // comment
+            .putShort((short) 0) // disk
+            .putShort((short) 0) // internal attributes
+            .putInt(0)           // external attributes
+            .putInt((int) (zip64 ? U32 : w.localHeaderOffset))
+            .put(w.name);
+            if(zip64)
+                b.putShort((short) 1).putShort((short) 24).putLong(w.size).putLong(w.compressedSize).putLong(w.localHeaderOffset);
+            b.flip();
+            write(b);
+        }
+        long cenSize = position - cenOffset;
+        int count = written.size();
+
+        if(count >= 0xFFFF || cenSize >= U32 || cenOffset >= U32) {
+            long zip64Offset = position;
+            ByteBuffer b = buffer(56 + 20);
+            b.putInt(ZIP64_EOCD_SIG).putLong(44)
+            .putShort((short) 45).putShort((short) 45)
+            .putInt(0).putInt(0)
+            .putLong(count).putLong(count)
+            .putLong(cenSize).putLong(cenOffset);
+            b.putInt(ZIP64_LOCATOR_SIG).putInt(0).putLong(zip64Offset).putInt(1);
+            b.flip();
+            write(b);
+        }
+        ByteBuffer b = buffer(22);
+        b.putInt(EOCD_SIG)
+        .putShort((short) 0).putShort((short) 0)
+        .putShort((short) Math.min(count, 0xFFFF)).putShort((short) Math.min(count, 0xFFFF))
+        .putInt((int) Math.min(cenSize, U32))
+        .putInt((int) Math.min(cenOffset, U32))
+        .putShort((short) 0);
+        b.flip();
+        write(b);
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    private void write(ByteBuffer b) throws IOException {
+        while(b.hasRemaining())
+            position += out.write(b, position);
+    }
+    private void writeAt(ByteBuffer b, long at) throws IOException {
+        while(b.hasRemaining())
+            at += out.write(b, at);
+    }
+    private static long dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if(t.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+}
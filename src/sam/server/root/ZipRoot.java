@@ -1,68 +1,111 @@
 package sam.server.root;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import sam.server.Utils;
+import sam.server.events.RepackEvent;
 
+/**
+ * zip root read through {@link ZipFile}.
+ * with a valid {@link RootIndex}, ZipFile is not opened (it parses whole central directory on open),
+ * entries are read from their offsets in index through a channel instead.
+ */
 public final class ZipRoot implements ServerRoot {
     private ZipFile zipFile;
+    private FileChannel channel;
     private Path file;
     private Map<String, ZipEntry> map;
-    private HashMap<String, Path> repackMap; 
+    private Map<String, ZipDirectory.Entry> entries;
+    private RootIndex index;
+    private volatile Map<String, Path> repackMap; 
+    private final Map<String, byte[]> kept = new ConcurrentHashMap<>();
 
     public ZipRoot(Path root) throws ZipException, IOException {
-        this.zipFile = new ZipFile(root.toFile());
         this.file = root;
-
-        map = this.zipFile.stream()
-                .collect(Collectors.toMap(z -> z.getName().replace('\\', '/'), z -> z));    
+        this.index = RootIndex.load(root);
+
+        if(index != null) {
+            this.channel = FileChannel.open(root, StandardOpenOption.READ);
+            entries = new HashMap<>(index.entries.size() * 4 / 3 + 1);
+            for (ZipDirectory.Entry e : index.entries)
+                entries.put(e.name, e);
+        } else {
+            this.zipFile = new ZipFile(root.toFile());
+            map = this.zipFile.stream()
+                    .collect(Collectors.toMap(z -> z.getName().replace('\\', '/'), z -> z));
+            RootIndex.rebuildInBackground(root);
+        }
     }
-    private ZipEntry zipEntry(URI uri) {
-        ZipEntry ze = map.get(toPath(uri));
-        if(ze == null)
+    private FileUnit fileUnit(String name) throws IOException {
+        if(map != null) {
+            ZipEntry ze = map.get(name);
+            return ze == null ? null : new FileUnit(ze.getName(), ze.getSize(), zipFile.getInputStream(ze));
+        }
+        ZipDirectory.Entry e = entries.get(name);
+        if(e == null)
             return null;
 
-        return ze;
+        InputStream in = new ChannelInputStream(channel, ZipDirectory.dataOffset(channel, e), e.compressedSize);
+        if(e.method == ZipDirectory.DEFLATED)
+            in = new EntryInflaterStream(in);
+        else if(e.method != ZipDirectory.STORED)
+            throw new ZipException("unsupported compression method: "+e.method+", entry: "+e.name);
+
+        return new FileUnit(e.name, e.size, in);
+    }
+    private Stream<String> names() {
+        return map != null ? map.keySet().stream() : entries.keySet().stream();
     }
 
     @Override
     public FileUnit getFileUnit(URI uri) throws IOException {
-        ZipEntry ze = zipEntry(uri); 
-        return  ze == null ? null : new FileUnit(ze.getName(), ze.getSize(), zipFile.getInputStream(ze));
+        byte[] bytes = kept.get(toPath(uri));
+        if(bytes != null)
+            return new FileUnit(toPath(uri), bytes.length, new ByteArrayInputStream(bytes));
+
+        return fileUnit(toPath(uri));
     }
     @Override
     public FileUnit getFileUnit(long hashcode) throws IOException {
         String hashcodeS = String.valueOf(hashcode);
-        Optional<String> path = 
-                map.keySet().stream()
-                .filter(s -> s.startsWith(hashcodeS))
-                .filter(s -> hashcodeS.equals(s.indexOf('.') < 0 ? s : s.substring(0, s.indexOf('.'))))
-                .filter(f -> !map.get(f).isDirectory())
-                .findFirst();
-        
-        if(path.isPresent()) {
-            ZipEntry ze = map.get(path.get());
-            return new FileUnit(ze.getName(), ze.getSize(), zipFile.getInputStream(ze));
+        Optional<String> path;
+        if(index != null) {
+            ZipDirectory.Entry e = index.get(hashcode);
+            path = Optional.ofNullable(e == null ? null : e.name);
+        } else {
+            path = map.keySet().stream()
+                    .filter(s -> s.startsWith(hashcodeS))
+                    .filter(s -> hashcodeS.equals(s.indexOf('.') < 0 ? s : s.substring(0, s.indexOf('.'))))
+                    .filter(f -> !map.get(f).isDirectory())
+                    .findFirst();
         }
+
+        FileUnit unit = path.isPresent() ? fileUnit(path.get()) : null;
+        if(unit != null)
+            return unit;
         
+        Map<String, Path> repackMap = this.repackMap;
         if(repackMap != null) {
             Optional<String> value = repackMap.keySet().stream()
             .filter(s -> s.startsWith(hashcodeS))
@@ -78,15 +121,33 @@ public final class ZipRoot implements ServerRoot {
     }
     
     
+    @Override
+    public boolean keep(URI uri, byte[] contents) {
+        // stored entries are as cheap to read from zip 
+        String name = toPath(uri);
+        ZipEntry ze = map == null ? null : map.get(name);
+        ZipDirectory.Entry e = entries == null ? null : entries.get(name);
+        if(ze != null ? ze.getMethod() == ZipEntry.STORED || ze.getSize() != contents.length : e == null || e.method == ZipDirectory.STORED || e.size != contents.length)
+            return false;
+        kept.put(toPath(uri), contents);
+        return true;
+    }
+
     @Override
     public void close() throws IOException {
-        repack();
-        file = null;
-        map = null;
-        repackMap = null;
+        kept.clear();
         if(zipFile != null) 
             zipFile.close();
+        if(channel != null)
+            channel.close();
         zipFile = null;
+        channel = null;
+        entries = null;
+        repack(file, repackMap);
+        file = null;
+        map = null;
+        index = null;
+        repackMap = null;
     }
 
     @Override
@@ -96,7 +157,7 @@ public final class ZipRoot implements ServerRoot {
 
     @Override
     public List<String> walkDirectory(final URI uri) {
-        Stream<String> strm = map.keySet().stream();
+        Stream<String> strm = names();
 
         String str = uri.getPath().substring(1);
 
@@ -117,47 +178,68 @@ public final class ZipRoot implements ServerRoot {
                 .collect(Collectors.toList());
     }
 
-    public void addRepackFile(Path file, String name) {
+    @Override
+    public void addFile(Path file, String name) {
+        addRepackFile(file, name);
+    }
+    public synchronized void addRepackFile(Path file, String name) {
         if(repackMap == null)
-            repackMap = new HashMap<>();
+            repackMap = new ConcurrentHashMap<>();
 
         repackMap.put(name, file);
     }
-    private void repack() throws IOException {
+    static void repack(Path file, Map<String, Path> repackMap) throws IOException {
         if (repackMap == null || repackMap.isEmpty() || Files.notExists(file))
             return;
 
+        RepackEvent event = new RepackEvent();
+        event.begin();
         Path out = Files.createTempFile("__", ".zip");
+        try {
+            ZipRepacker.repack(file, repackMap, out);
+            Files.move(out, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(out);
+            event.end();
+            if(event.shouldCommit()) {
+                event.file = file.toString();
+                event.added = repackMap.size();
+                event.size = file.toFile().length();
+                event.commit();
+            }
+        }
+        System.out.println(Utils.yellow("repacked: ") + file.getFileName() + Utils.yellow("  added: ") + repackMap.keySet());
+    }
 
-        try (OutputStream os = Files.newOutputStream(out, StandardOpenOption.WRITE);
-                ZipOutputStream zos = new ZipOutputStream(os);) {
+    /**
+     * raw deflate of an entry, with the extra byte a nowrap {@link Inflater} may need at end of input (as ZipFile does)
+     */
+    private static final class EntryInflaterStream extends InflaterInputStream {
+        private boolean eof, closed;
 
-            byte[] bytes = new byte[256*1024];
-            
-            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry ze = entries.nextElement();
-                zos.putNextEntry(ze);
-                
-                InputStream is = zipFile.getInputStream(ze); 
-                int n = 0;
-                while ((n = is.read(bytes)) > 0)
-                    zos.write(bytes, 0, n);
+        EntryInflaterStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+        @Override
+        protected void fill() throws IOException {
+            if(eof)
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            len = in.read(buf, 0, buf.length);
+            if(len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
             }
-            repackMap.forEach((name, file) -> {
-                try {
-                    zos.putNextEntry(new ZipEntry(name.toString()));
-                    Files.copy(file, zos);  
-                } catch (IOException e) {
-                    System.out.println(Utils.red("failed repack: ")+file+"  "+e);
-                }
-            });
+            inf.setInput(buf, 0, len);
+        }
+        @Override
+        public void close() throws IOException {
+            if(closed)
+                return;
+            closed = true;
+            inf.end();
+            super.close();
         }
-        zipFile.close();
-        zipFile = null;
-
-        Files.move(out, file, StandardCopyOption.REPLACE_EXISTING);
-        System.out.println(Utils.yellow("repacked: ") + file.getFileName() + Utils.yellow("  added: ") + repackMap.keySet());
     }
 
 }